@@ -0,0 +1,85 @@
+package pbz;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+JMH version of the blending of `BenchmarkSuite`: a 64K pixel row of each
+opacity mix blended onto random colors, straight with `Pixel.blendColor` and
+`Pixel.blendSpan` and premultiplied with `Pixel.overColor` and the
+premultiplied `Pixel.blendSpan`. Run with `gradle jmh -Pbench=BlendBench`.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BlendBench
+{
+	private static final int SIZE = 1 << 16;
+
+	@Param({"opaque", "sprite", "noise"})
+	public String mix;
+
+	private int[] background;
+	private int[] src;
+	private int[] pre;
+	private final int[] dest = new int[SIZE];
+
+	@Setup
+	public void setUp()
+	{
+		background = Images.image("noise", SIZE, 1, new Random(1))
+			.getPixels();
+		src = Images.image(mix, SIZE, 1, new Random(2)).getPixels();
+		pre = new int[SIZE];
+		for (int i = 0; i < SIZE; i++)
+		{
+			pre[i] = Pixel.premultiply(src[i]);
+		}
+	}
+
+	@Benchmark
+	public int[] blendColor()
+	{
+		System.arraycopy(background, 0, dest, 0, SIZE);
+		for (int i = 0; i < SIZE; i++)
+		{
+			dest[i] = Pixel.blendColor(dest[i], src[i]);
+		}
+		return dest;
+	}
+
+	@Benchmark
+	public int[] blendSpan()
+	{
+		System.arraycopy(background, 0, dest, 0, SIZE);
+		Pixel.blendSpan(dest, 0, src, 0, SIZE);
+		return dest;
+	}
+
+	@Benchmark
+	public int[] overColor()
+	{
+		System.arraycopy(background, 0, dest, 0, SIZE);
+		for (int i = 0; i < SIZE; i++)
+		{
+			dest[i] = Pixel.overColor(dest[i], pre[i]);
+		}
+		return dest;
+	}
+
+	@Benchmark
+	public int[] overSpan()
+	{
+		System.arraycopy(background, 0, dest, 0, SIZE);
+		Pixel.blendSpan(dest, 0, pre, 0, SIZE, true);
+		return dest;
+	}
+}
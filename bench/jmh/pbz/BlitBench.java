@@ -0,0 +1,64 @@
+package pbz;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+JMH version of the blits of `BenchmarkSuite`: every `Bitmap.blitBitmap`
+variant onto a 1024x1024 canvas, for each source size and opacity mix (see
+`Images.image`). Run with `gradle jmh -Pbench=BlitBench`.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BlitBench
+{
+	@Param({"32", "128", "512"})
+	public int size;
+
+	@Param({"opaque", "sprite", "noise"})
+	public String mix;
+
+	@Param({"pos", "scl", "rot0.3", "rot2.0", "rotscl0.3", "rotscl2.0",
+		"rotshrink"})
+	public String kind;
+
+	private Image canvas;
+	private Image image;
+	private double rot;
+	private double sclx;
+	private double scly;
+
+	@Setup
+	public void setUp()
+	{
+		canvas = new Image(1024, 1024);
+		image = Images.image(mix, size, size, new Random(size));
+
+		rot = kind.endsWith("0.3") || kind.equals("rotshrink") ? 0.3 :
+			kind.endsWith("2.0") ? 2.0 : 0;
+		sclx = kind.equals("scl") || kind.startsWith("rotscl") ? 1.5 :
+			kind.equals("rotshrink") ? 0.25 : 1;
+		scly = kind.equals("scl") ? 1.5 : kind.startsWith("rotscl") ? 0.75 :
+			kind.equals("rotshrink") ? 0.25 : 1;
+	}
+
+	/**
+	Blits onto the same canvas every time, whose pixels are returned so the
+	blit cannot be left out.
+	*/
+	@Benchmark
+	public int[] blit()
+	{
+		canvas.blitBitmap(image, 512, 512, rot, sclx, scly);
+		return canvas.getPixels();
+	}
+}
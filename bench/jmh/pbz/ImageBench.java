@@ -0,0 +1,106 @@
+package pbz;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+JMH version of the serialization of `BenchmarkSuite`: an 800x600 canvas
+written and read through streams and buffers, and turned into a
+`BufferedImage` and back. Run with `gradle jmh -Pbench=ImageBench`.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ImageBench
+{
+	private Image canvas;
+	private ByteArrayOutputStream bytes;
+	private byte[] written;
+	private ByteBuffer buf;
+	private BufferedImage abgr;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		canvas = Images.image("noise", 800, 600, new Random(3));
+		bytes = new ByteArrayOutputStream(8 + canvas.getSize() * 4);
+		canvas.write(new DataOutputStream(bytes));
+		written = bytes.toByteArray();
+		buf = ByteBuffer.allocateDirect(written.length);
+		buf.put(written);
+
+		// What ImageIO usually makes of a PNG with alpha
+		abgr = new BufferedImage(800, 600, BufferedImage.TYPE_4BYTE_ABGR);
+		abgr.getGraphics().drawImage(canvas.asBufferedImage(), 0, 0, null);
+	}
+
+	@Benchmark
+	public int writeStream() throws IOException
+	{
+		bytes.reset();
+		canvas.write(new DataOutputStream(bytes));
+		return bytes.size();
+	}
+
+	@Benchmark
+	public int[] readStream() throws IOException
+	{
+		return Image.read(new DataInputStream(new ByteArrayInputStream(
+			written))).getPixels();
+	}
+
+	/**
+	Same as `readStream`, but hands the pixels back to the `PixelPool`, as
+	the server does once it is done with an image.
+	*/
+	@Benchmark
+	public int readPooled() throws IOException
+	{
+		Image image = Image.read(new DataInputStream(new ByteArrayInputStream(
+			written)));
+		int pixel = image.getPixels()[0];
+		PixelPool.shared.release(image);
+		return pixel;
+	}
+
+	@Benchmark
+	public ByteBuffer writeBuffer()
+	{
+		buf.clear();
+		canvas.write(buf);
+		return buf;
+	}
+
+	@Benchmark
+	public int[] readBuffer()
+	{
+		buf.rewind();
+		return Image.read(buf).getPixels();
+	}
+
+	@Benchmark
+	public BufferedImage asBufferedImage()
+	{
+		return canvas.asBufferedImage();
+	}
+
+	@Benchmark
+	public int[] ofAbgr()
+	{
+		return Image.of(abgr).getPixels();
+	}
+}
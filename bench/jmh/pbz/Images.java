@@ -0,0 +1,37 @@
+package pbz;
+
+import java.util.Random;
+
+/**
+The images the JMH benchmarks draw, made exactly like `BenchmarkSuite.image`
+makes them, so the numbers of both compare. The suite itself is not part of
+the JMH sources.
+*/
+class Images
+{
+	/**
+	An image of random colors. "opaque" ones have no transparency at all,
+	"sprite" ones a transparent border around an opaque middle with a
+	translucent edge, and "noise" ones random alpha.
+	*/
+	static Image image(String mix, int width, int height, Random rand)
+	{
+		Image image = new Image(width, height);
+		int[] pixels = image.getPixels();
+		int border = width / 8;
+		for (int i = 0; i < pixels.length; i++)
+		{
+			int x = i % width;
+			if (mix.equals("opaque"))
+				pixels[i] = rand.nextInt() | 0xFF000000;
+			else if (mix.equals("noise"))
+				pixels[i] = rand.nextInt();
+			else
+				pixels[i] = x < border || x >= width - border ? 0 :
+					x == border || x == width - border - 1 ?
+					rand.nextInt() & 0x80FFFFFF : rand.nextInt() | 0xFF000000;
+		}
+		image.setPixels(pixels);
+		return image;
+	}
+}
@@ -0,0 +1,141 @@
+package pbz;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+JMH version of the round trips of `BenchmarkSuite`: an 800x600 scene of four
+images rendered by a blocking server on the loopback interface, one request
+at a time, eight pipelined on one connection, eight as a single batch, and
+one at a time with the result run length encoded. The images are uploaded
+during setup, so only the request, the render and the result are measured.
+Run with `gradle jmh -Pbench=RoundTripBench`.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RoundTripBench
+{
+	private ServerSocket socket;
+	private RenderClient client;
+	private RenderClient rleClient;
+	private InstructionSet set;
+	private List<InstructionSet> batch;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		socket = new ServerSocket(0);
+		Thread server = new Thread(() -> {
+			while (true)
+			{
+				try
+				{
+					Socket connection = socket.accept();
+					Thread serving = new Thread(() -> {
+						try (Socket open = connection)
+						{
+							new Connection(open).serve();
+						}
+						catch (IOException e)
+						{
+							e.printStackTrace();
+						}
+					});
+					serving.setDaemon(true);
+					serving.start();
+				}
+				catch (IOException e)
+				{
+					if (socket.isClosed()) return;
+					e.printStackTrace();
+				}
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+
+		Random rand = new Random(5);
+		set = new InstructionSet(800, 600);
+		set.addInstruction(new DrawInstruction(
+			Images.image("opaque", 800, 600, rand), 400, 300, 0, 1, 1));
+		set.addInstruction(new DrawInstruction(
+			Images.image("sprite", 128, 128, rand), 100, 256, 0, 1, 1));
+		set.addInstruction(new DrawInstruction(
+			Images.image("noise", 128, 128, rand), 256, 256, 0.45f, 1,
+			1));
+		set.addInstruction(new DrawInstruction(
+			Images.image("sprite", 64, 64, rand), 512, 256, 0, 2, 2));
+		batch = Collections.nCopies(8, set);
+
+		client = new RenderClient("127.0.0.1", socket.getLocalPort());
+		client.render(set);
+		rleClient = new RenderClient("127.0.0.1", socket.getLocalPort());
+		rleClient.setEncodings(PixelCodec.RLE);
+		rleClient.render(set);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		client.close();
+		rleClient.close();
+		socket.close();
+	}
+
+	@Benchmark
+	public int[] raw() throws IOException
+	{
+		return client.render(set).getPixels();
+	}
+
+	@Benchmark
+	public int pipelined8()
+		throws IOException, InterruptedException, ExecutionException
+	{
+		List<CompletableFuture<Image>> results = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+		{
+			results.add(client.submit(set));
+		}
+		int pixel = 0;
+		for (CompletableFuture<Image> result : results)
+		{
+			pixel ^= result.get().getPixels()[0];
+		}
+		return pixel;
+	}
+
+	@Benchmark
+	public int batch8() throws IOException
+	{
+		int pixel = 0;
+		for (Image result : client.renderBatch(batch))
+		{
+			pixel ^= result.getPixels()[0];
+		}
+		return pixel;
+	}
+
+	@Benchmark
+	public int[] rle() throws IOException
+	{
+		return rleClient.render(set).getPixels();
+	}
+}
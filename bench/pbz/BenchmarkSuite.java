@@ -0,0 +1,451 @@
+package pbz;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+The benchmarks to run before and after every change that could affect
+performance: each `Bitmap.blitBitmap` variant across source sizes, rotations
+and opacity mixes, `Pixel.blendColor`, `Pixel.overColor` and `Pixel.blendSpan`
+for straight and premultiplied colors, `Image` serialization and conversion,
+layered scenes drawn by `RenderSiren`, frames of a `Display` presented
+off-screen, and whole renders sent through a server on the loopback interface
+with `RenderClient`.
+
+Prints one line per benchmark with the median time per operation. Given a file
+of earlier results, also prints how much each one changed and marks anything
+more than `REGRESSION` slower. The results of the last performance change are
+kept in `bench/baseline.txt`. Run from the repository root after compiling
+`src` and `bench` together:
+
+    java -cp out pbz.BenchmarkSuite bench/baseline.txt
+
+and record a new baseline, on a quiet machine, with:
+
+    java -cp out pbz.BenchmarkSuite > bench/baseline.txt
+
+Operations that take only a few microseconds can easily differ by 20% or more
+between runs, so only believe a regression that shows up again. This is a
+quick check that needs nothing but a JDK. The JMH versions of the same
+benchmarks in `bench/jmh` run in forked JVMs and keep results from being
+optimized away, so they are the numbers to trust:
+
+    gradle jmh
+
+writes its results to `build/reports/jmh/results.txt`. Those of the last
+performance change are kept in `bench/jmh/baseline.txt`.
+
+The other classes in `bench` go into more detail on single topics and compare
+against the code they replaced.
+*/
+class BenchmarkSuite
+{
+	private static final long WARMUP_NANOS = 200_000_000L;
+	private static final long BATCH_NANOS = 40_000_000L;
+	private static final int BATCHES = 7;
+	private static final double REGRESSION = 0.10;
+
+	private static final int[] SIZES = {32, 128, 512};
+	private static final String[] MIXES = {"opaque", "sprite", "noise"};
+
+	private final Map<String, Double> baseline;
+
+	private BenchmarkSuite(Map<String, Double> baseline)
+	{
+		this.baseline = baseline;
+	}
+
+	/**
+	Run everything, comparing against the results in the file given as the
+	only argument if there is one.
+	*/
+	public static void main(String[] args) throws Exception
+	{
+		BenchmarkSuite suite = new BenchmarkSuite(args.length > 0 ?
+			readResults(args[0]) : null);
+
+		System.out.printf("# %-38s %12s%s%n", "benchmark", "ms/op",
+			args.length > 0 ? String.format(" %12s %8s", "baseline",
+			"change") : "");
+
+		suite.blits();
+		suite.blending();
+		suite.serialization();
+		suite.scenes();
+		suite.display();
+		suite.roundTrips();
+	}
+
+	/**
+	Every blit variant onto a 1024x1024 canvas.
+	*/
+	private void blits() throws Exception
+	{
+		Image canvas = new Image(1024, 1024);
+		for (int size : SIZES)
+		{
+			for (String mix : MIXES)
+			{
+				Image image = image(mix, size, size, new Random(size));
+				String name = "blit." + mix + "." + size;
+
+				measure(name + ".pos", () ->
+					canvas.blitBitmap(image, 512, 512, 0, 1, 1));
+				measure(name + ".scl", () ->
+					canvas.blitBitmap(image, 512, 512, 0, 1.5, 1.5));
+				measure(name + ".rot0.3", () ->
+					canvas.blitBitmap(image, 512, 512, 0.3, 1, 1));
+				measure(name + ".rot2.0", () ->
+					canvas.blitBitmap(image, 512, 512, 2.0, 1, 1));
+				measure(name + ".rotscl0.3", () ->
+					canvas.blitBitmap(image, 512, 512, 0.3, 1.5, 0.75));
+				measure(name + ".rotscl2.0", () ->
+					canvas.blitBitmap(image, 512, 512, 2.0, 1.5, 0.75));
+				measure(name + ".rotshrink", () ->
+					canvas.blitBitmap(image, 512, 512, 0.3, 0.25, 0.25));
+			}
+		}
+	}
+
+	/**
+	A 64K pixel row of each opacity mix blended onto random colors.
+	*/
+	private void blending() throws Exception
+	{
+		int size = 1 << 16;
+		int[] background = image("noise", size, 1, new Random(1)).getPixels();
+		int[] dest = new int[size];
+
+		for (String mix : MIXES)
+		{
+			int[] src = image(mix, size, 1, new Random(2)).getPixels();
+
+			measure("blend." + mix + ".blendColor", () -> {
+				System.arraycopy(background, 0, dest, 0, size);
+				for (int i = 0; i < size; i++)
+				{
+					dest[i] = Pixel.blendColor(dest[i], src[i]);
+				}
+			});
+			measure("blend." + mix + ".blendSpan", () -> {
+				System.arraycopy(background, 0, dest, 0, size);
+				Pixel.blendSpan(dest, 0, src, 0, size);
+			});
+
+			int[] pre = new int[size];
+			for (int i = 0; i < size; i++)
+			{
+				pre[i] = Pixel.premultiply(src[i]);
+			}
+			measure("blend." + mix + ".overColor", () -> {
+				System.arraycopy(background, 0, dest, 0, size);
+				for (int i = 0; i < size; i++)
+				{
+					dest[i] = Pixel.overColor(dest[i], pre[i]);
+				}
+			});
+			measure("blend." + mix + ".overSpan", () -> {
+				System.arraycopy(background, 0, dest, 0, size);
+				Pixel.blendSpan(dest, 0, pre, 0, size, true);
+			});
+		}
+	}
+
+	/**
+	An 800x600 canvas written and read through streams and buffers, also
+	handing the pixels back to the `PixelPool` after every read, and turned
+	into a `BufferedImage` and back.
+	*/
+	private void serialization() throws Exception
+	{
+		Image canvas = image("noise", 800, 600, new Random(3));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+			8 + canvas.getSize() * 4);
+		canvas.write(new DataOutputStream(bytes));
+		byte[] written = bytes.toByteArray();
+		ByteBuffer buf = ByteBuffer.allocateDirect(written.length);
+
+		measure("image.write.stream", () -> {
+			bytes.reset();
+			canvas.write(new DataOutputStream(bytes));
+		});
+		measure("image.read.stream", () ->
+			Image.read(new DataInputStream(new ByteArrayInputStream(written))));
+		measure("image.write.buffer", () -> {
+			buf.clear();
+			canvas.write(buf);
+		});
+		measure("image.read.buffer", () -> {
+			buf.rewind();
+			Image.read(buf);
+		});
+		measure("image.read.pooled", () -> PixelPool.shared.release(
+			Image.read(new DataInputStream(new ByteArrayInputStream(written)))));
+		measure("image.asBufferedImage", canvas::asBufferedImage);
+
+		// What ImageIO usually makes of a PNG with alpha
+		BufferedImage abgr = new BufferedImage(800, 600,
+			BufferedImage.TYPE_4BYTE_ABGR);
+		abgr.getGraphics().drawImage(canvas.asBufferedImage(), 0, 0, null);
+		measure("image.of.abgr", () -> Image.of(abgr));
+	}
+
+	/**
+	800x600 scenes of the kind that draw over most of what they drew before:
+	sprites that a background drawn late hides completely, and a map of
+	opaque tiles over the top of sprites with a few sprites on top of it.
+	*/
+	private void scenes() throws Exception
+	{
+		Random rand = new Random(4);
+		InstructionSet late = new InstructionSet(800, 600);
+		for (int i = 0; i < 40; i++)
+		{
+			late.addInstruction(new DrawInstruction(image("sprite", 64, 64,
+				rand), rand.nextInt(800), rand.nextInt(600),
+				i % 4 == 0 ? 0.3f : 0, 1, 1));
+		}
+		late.addInstruction(new DrawInstruction(image("opaque", 800, 600,
+			rand), 400, 300, 0, 1, 1));
+		measure("scene.lateBackground", () -> RenderSiren.render(late));
+
+		InstructionSet tiles = new InstructionSet(800, 600);
+		for (int i = 0; i < 20; i++)
+		{
+			tiles.addInstruction(new DrawInstruction(image("noise", 96, 96,
+				rand), rand.nextInt(800), rand.nextInt(600), 0, 1.5f, 1.5f));
+		}
+		Image tile = image("opaque", 32, 32, rand);
+		for (int y = 16; y < 600; y += 32)
+		{
+			for (int x = 16; x < 800; x += 32)
+			{
+				tiles.addInstruction(new DrawInstruction(tile, x, y, 0, 1, 1));
+			}
+		}
+		for (int i = 0; i < 10; i++)
+		{
+			tiles.addInstruction(new DrawInstruction(image("sprite", 64, 64,
+				rand), rand.nextInt(800), rand.nextInt(600), 0, 1, 1));
+		}
+		measure("scene.tileMap", () -> RenderSiren.render(tiles));
+	}
+
+	/**
+	A frame of an 800x600 `Display` that draws a full-screen image, handed
+	over and presented off-screen, without the frame rate limit.
+	*/
+	private void display() throws Exception
+	{
+		Image background = Image.load("res/Map.png");
+		Display display = new Display(800, 600)
+		{
+			@Override
+			public void render()
+			{
+				buffer.blitBitmap(background, 400, 300, 0, 1, 1);
+			}
+		};
+
+		measure("display.frame.offscreen", () -> {
+			display.frame();
+			display.presentOffscreen();
+		});
+	}
+
+	/**
+	The scene `Client` sends, rendered by a blocking server on the loopback
+	interface. Only the first render uploads the images and opens the
+	connection, so this measures the request, the render and the result, one
+	at a time and eight at a time on the same connection.
+	*/
+	private void roundTrips() throws Exception
+	{
+		ServerSocket socket = new ServerSocket(0);
+		Thread server = new Thread(() -> {
+			while (true)
+			{
+				try
+				{
+					Socket connection = socket.accept();
+					Thread serving = new Thread(() -> {
+						try (Socket open = connection)
+						{
+							new Connection(open).serve();
+						}
+						catch (IOException e)
+						{
+							e.printStackTrace();
+						}
+					});
+					serving.setDaemon(true);
+					serving.start();
+				}
+				catch (IOException e)
+				{
+					if (socket.isClosed()) return;
+					e.printStackTrace();
+				}
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+
+		InstructionSet set = new InstructionSet(800, 600);
+		set.addInstruction(new DrawInstruction(
+			Image.load("res/Map.png"), 400, 300, 0, 1, 1));
+		set.addInstruction(new DrawInstruction(
+			Image.load("res/Pebaz.png"), 100, 256, 0, 1, 1));
+		set.addInstruction(new DrawInstruction(
+			Image.load("res/Protodip.png"), 256, 256, 0.45f, 1, 1));
+		set.addInstruction(new DrawInstruction(
+			Image.load("res/Azimuth.png"), 512, 256, 0, 2, 2));
+
+		try (RenderClient client = new RenderClient("127.0.0.1",
+			socket.getLocalPort()))
+		{
+			measure("roundtrip.client.raw", () -> client.render(set));
+
+			List<CompletableFuture<Image>> results = new ArrayList<>();
+			measure("roundtrip.client.pipelined8", () -> {
+				results.clear();
+				for (int i = 0; i < 8; i++)
+				{
+					results.add(client.submit(set));
+				}
+				for (CompletableFuture<Image> result : results)
+				{
+					result.get();
+				}
+			});
+
+			List<InstructionSet> batch = Collections.nCopies(8, set);
+			measure("roundtrip.client.batch8", () -> client.renderBatch(batch));
+		}
+
+		try (RenderClient client = new RenderClient("127.0.0.1",
+			socket.getLocalPort()))
+		{
+			client.setEncodings(PixelCodec.RLE);
+			measure("roundtrip.client.rle", () -> client.render(set));
+		}
+
+		socket.close();
+	}
+
+	/**
+	Something to measure that may throw.
+	*/
+	private interface Operation
+	{
+		void run() throws Exception;
+	}
+
+	/**
+	Run the operation for a while to warm up, then in batches of about
+	`BATCH_NANOS`, and print the median time per operation of the batches.
+	*/
+	private void measure(String name, Operation operation) throws Exception
+	{
+		long ops = 0;
+		long start = System.nanoTime();
+		while (System.nanoTime() - start < WARMUP_NANOS)
+		{
+			operation.run();
+			ops++;
+		}
+		long perBatch = Math.max(1, ops * BATCH_NANOS / WARMUP_NANOS);
+
+		double[] times = new double[BATCHES];
+		for (int batch = 0; batch < BATCHES; batch++)
+		{
+			long batchStart = System.nanoTime();
+			for (long i = 0; i < perBatch; i++)
+			{
+				operation.run();
+			}
+			times[batch] = (System.nanoTime() - batchStart) / 1e6 / perBatch;
+		}
+		Arrays.sort(times);
+		double median = times[BATCHES / 2];
+
+		Double before = baseline == null ? null : baseline.get(name);
+		if (baseline == null)
+			System.out.printf("  %-38s %12.4f%n", name, median);
+		else if (before == null)
+			System.out.printf("  %-38s %12.4f %12s %8s%n", name, median, "-",
+				"new");
+		else
+		{
+			double change = median / before - 1;
+			System.out.printf("%s %-38s %12.4f %12.4f %+7.1f%%%n",
+				change > REGRESSION ? "!" : " ", name, median, before,
+				change * 100);
+		}
+	}
+
+	/**
+	Reads results printed earlier, skipping comments.
+	*/
+	private static Map<String, Double> readResults(String filename)
+		throws IOException
+	{
+		Map<String, Double> results = new HashMap<>();
+		try (BufferedReader in = new BufferedReader(new FileReader(filename)))
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				// Regressions are marked with a leading "!"
+				String[] fields = line.replace('!', ' ').trim().split("\\s+");
+				if (fields.length < 2 || fields[0].startsWith("#")) continue;
+				results.put(fields[0], Double.valueOf(fields[1]));
+			}
+		}
+		return results;
+	}
+
+	/**
+	An image of random colors. "opaque" ones have no transparency at all,
+	"sprite" ones a transparent border around an opaque middle with a
+	translucent edge, and "noise" ones random alpha. `Images` in `bench/jmh`
+	makes the same ones for the JMH benchmarks.
+	*/
+	static Image image(String mix, int width, int height, Random rand)
+	{
+		Image image = new Image(width, height);
+		int[] pixels = image.getPixels();
+		int border = width / 8;
+		for (int i = 0; i < pixels.length; i++)
+		{
+			int x = i % width;
+			if (mix.equals("opaque"))
+				pixels[i] = rand.nextInt() | 0xFF000000;
+			else if (mix.equals("noise"))
+				pixels[i] = rand.nextInt();
+			else
+				pixels[i] = x < border || x >= width - border ? 0 :
+					x == border || x == width - border - 1 ?
+					rand.nextInt() & 0x80FFFFFF : rand.nextInt() | 0xFF000000;
+		}
+		image.setPixels(pixels);
+		return image;
+	}
+}
@@ -0,0 +1,116 @@
+package pbz;
+
+import java.util.Random;
+
+/**
+Compares the old floating point `Pixel.blendColor` (kept below for reference)
+with the current integer one and with `Pixel.blendSpan`, blending a row of a
+million colors onto another.
+
+Run after compiling `src` and `bench` together:
+
+    java -cp out pbz.BlendBenchmark
+*/
+class BlendBenchmark
+{
+	private static final int SIZE = 1 << 20;
+	private static final int WARMUP = 20;
+	private static final int ROUNDS = 50;
+
+	/**
+	Print the time per million blended colors for each variant, once for
+	colors with random alpha and once for rows that look like sprites.
+	*/
+	public static void main(String[] args)
+	{
+		Random rand = new Random(8011);
+		int[] background = new int[SIZE];
+		int[] noise = new int[SIZE];
+		int[] sprites = new int[SIZE];
+		for (int i = 0; i < SIZE; i++)
+		{
+			background[i] = rand.nextInt();
+
+			// A quarter each opaque and invisible, the rest translucent
+			int kind = rand.nextInt(4);
+			noise[i] = kind == 0 ? rand.nextInt() | 0xFF000000 :
+				kind == 1 ? rand.nextInt() & 0x00FFFFFF : rand.nextInt();
+
+			// Rows of 64: invisible border, a translucent edge pixel and an
+			// opaque middle
+			int x = i % 64;
+			sprites[i] = x < 12 || x >= 52 ? 0 :
+				x == 12 || x == 51 ? 0x80FFFFFF & rand.nextInt() :
+				rand.nextInt() | 0xFF000000;
+		}
+
+		run("noise", noise, background);
+		run("sprites", sprites, background);
+	}
+
+	private static void run(String name, int[] src, int[] background)
+	{
+		int[] dest = new int[SIZE];
+		long doubles = 0;
+		long integers = 0;
+		long spans = 0;
+		for (int round = 0; round < WARMUP + ROUNDS; round++)
+		{
+			System.arraycopy(background, 0, dest, 0, SIZE);
+			long start = System.nanoTime();
+			for (int i = 0; i < SIZE; i++)
+			{
+				dest[i] = blendDouble(dest[i], src[i]);
+			}
+			long doubled = System.nanoTime();
+
+			System.arraycopy(background, 0, dest, 0, SIZE);
+			long copied = System.nanoTime();
+			for (int i = 0; i < SIZE; i++)
+			{
+				dest[i] = Pixel.blendColor(dest[i], src[i]);
+			}
+			long integered = System.nanoTime();
+
+			System.arraycopy(background, 0, dest, 0, SIZE);
+			long recopied = System.nanoTime();
+			Pixel.blendSpan(dest, 0, src, 0, SIZE);
+			long spanned = System.nanoTime();
+
+			if (round >= WARMUP)
+			{
+				doubles += doubled - start;
+				integers += integered - copied;
+				spans += spanned - recopied;
+			}
+		}
+
+		System.out.printf("%-8s double blendColor:  %6.2f ms%n", name,
+			doubles / 1e6 / ROUNDS);
+		System.out.printf("%-8s integer blendColor: %6.2f ms%n", name,
+			integers / 1e6 / ROUNDS);
+		System.out.printf("%-8s blendSpan:          %6.2f ms%n", name,
+			spans / 1e6 / ROUNDS);
+	}
+
+	/**
+	`Pixel.blendColor` as it used to be.
+	*/
+	private static int blendDouble(int a, int b)
+	{
+		int balpha = Pixel.getChannelAlpha(b);
+		if (balpha == 255) return b;
+
+		double barf = balpha / 255.0f;
+		double brem = (255 - balpha) / 255.0f;
+		int fred   = (int)(Pixel.getChannelRed(b) * barf +
+			Pixel.getChannelRed(a) * brem);
+		int fgreen = (int)(Pixel.getChannelGreen(b) * barf +
+			Pixel.getChannelGreen(a) * brem);
+		int fblue  = (int)(Pixel.getChannelBlue(b) * barf +
+			Pixel.getChannelBlue(a) * brem);
+		int falpha = Math.min(Pixel.getChannelAlpha(a) + balpha, 255);
+
+		return Pixel.createColor(falpha, fred, fgreen, fblue);
+	}
+}
@@ -0,0 +1,87 @@
+package pbz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+Measures size and CPU time of every `PixelCodec` encoding for a few typical
+images: a sprite with transparent borders, the photographic `Map.png`
+background and the canvas rendered from the scene `Client` sends.
+
+Run from the repository root after compiling `src` and `bench` together:
+
+    java -cp out pbz.CodecBenchmark
+*/
+class CodecBenchmark
+{
+	private static final int WARMUP = 5;
+	private static final int ROUNDS = 20;
+
+	/**
+	Print one line per image and encoding.
+	*/
+	public static void main(String[] args) throws IOException
+	{
+		Image sprite = Image.load("res/Pebaz.png");
+		Image map = Image.load("res/Map.png");
+
+		InstructionSet set = new InstructionSet(800, 600);
+		set.addInstruction(new DrawInstruction(map, 400, 300, 0, 1, 1));
+		set.addInstruction(new DrawInstruction(sprite, 100, 256, 0, 1, 1));
+		set.addInstruction(new DrawInstruction(
+			Image.load("res/Protodip.png"), 256, 256, 0.45f, 1, 1));
+		set.addInstruction(new DrawInstruction(
+			Image.load("res/Azimuth.png"), 512, 256, 0, 2, 2));
+		Image canvas = RenderSiren.render(set);
+
+		System.out.printf("%-8s %-10s %10s %7s %10s %10s%n", "image",
+			"encoding", "bytes", "ratio", "encode ms", "decode ms");
+
+		measure("sprite", sprite);
+		measure("map", map);
+		measure("canvas", canvas);
+	}
+
+	private static void measure(String name, Image image) throws IOException
+	{
+		measure(name, image, "raw", PixelCodec.RAW, 0);
+		measure(name, image, "rle", PixelCodec.RLE, 0);
+		measure(name, image, "deflate1", PixelCodec.DEFLATE, 1);
+		measure(name, image, "deflate6", PixelCodec.DEFLATE, 6);
+		measure(name, image, "deflate9", PixelCodec.DEFLATE, 9);
+	}
+
+	private static void measure(String name, Image image, String label,
+		int encoding, int level) throws IOException
+	{
+		PixelCodec codec = PixelCodec.forEncoding(encoding, level);
+		byte[] encoded = null;
+		long encodeTime = 0;
+		long decodeTime = 0;
+
+		for (int i = 0; i < WARMUP + ROUNDS; i++)
+		{
+			long start = System.nanoTime();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			codec.write(image, new DataOutputStream(bytes));
+			encoded = bytes.toByteArray();
+			long encodedAt = System.nanoTime();
+			codec.read(new DataInputStream(new ByteArrayInputStream(encoded)));
+			long decodedAt = System.nanoTime();
+
+			if (i >= WARMUP)
+			{
+				encodeTime += encodedAt - start;
+				decodeTime += decodedAt - encodedAt;
+			}
+		}
+
+		System.out.printf("%-8s %-10s %10d %6.1f%% %10.2f %10.2f%n", name,
+			label, encoded.length,
+			100.0 * encoded.length / (8 + image.getSize() * 4L),
+			encodeTime / 1e6 / ROUNDS, decodeTime / 1e6 / ROUNDS);
+	}
+}
@@ -0,0 +1,163 @@
+package pbz;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+Sends an `Image` to an echo server on the loopback interface and reads it back,
+once the way `Image` used to do it (one `writeInt`/`readInt` per pixel on
+unbuffered streams with 512 byte socket buffers) and once with the current
+chunked `Image.write`/`Image.read` on buffered streams.
+
+The old way is only timed for a small sprite, as a full 800x600 canvas takes
+minutes per round trip that way.
+
+Run from the repository root after compiling `src` and `bench` together:
+
+    java -cp out pbz.SerializationBenchmark
+*/
+class SerializationBenchmark
+{
+	private static final int WARMUP = 3;
+	private static final int ROUNDS = 10;
+
+	/**
+	Run both variants and print the average round trip time of each.
+	*/
+	public static void main(String[] args) throws Exception
+	{
+		Image sprite = randomImage(100, 100);
+		Image canvas = randomImage(800, 600);
+
+		double perPixel = run(sprite, false);
+		double bulk = run(sprite, true);
+
+		System.out.printf("100x100 per pixel: %9.2f ms/round trip%n", perPixel);
+		System.out.printf("100x100 bulk:      %9.2f ms/round trip%n", bulk);
+		System.out.printf("100x100 speedup:   %9.1fx%n", perPixel / bulk);
+		System.out.printf("800x600 bulk:      %9.2f ms/round trip%n",
+			run(canvas, true));
+	}
+
+	private static Image randomImage(int width, int height)
+	{
+		Image image = new Image(width, height);
+		Random rand = new Random(8011);
+		for (int i = 0; i < image.getSize(); i++)
+		{
+			image.getPixels()[i] = rand.nextInt();
+		}
+		return image;
+	}
+
+	/**
+	Time `ROUNDS` round trips after `WARMUP` untimed ones and return the
+	average in milliseconds.
+	*/
+	private static double run(Image image, boolean bulk) throws Exception
+	{
+		ServerSocket server = new ServerSocket(0);
+		Thread echo = new Thread(() -> {
+			try
+			{
+				for (int i = 0; i < WARMUP + ROUNDS; i++)
+				{
+					Socket socket = server.accept();
+					Streams streams = new Streams(socket, bulk);
+					Image received = read(streams.in, bulk);
+					write(received, streams.out, bulk);
+					streams.out.flush();
+					socket.close();
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		});
+		echo.start();
+
+		long total = 0;
+		for (int i = 0; i < WARMUP + ROUNDS; i++)
+		{
+			long start = System.nanoTime();
+
+			Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+			Streams streams = new Streams(socket, bulk);
+			write(image, streams.out, bulk);
+			streams.out.flush();
+			read(streams.in, bulk);
+			socket.close();
+
+			if (i >= WARMUP) total += System.nanoTime() - start;
+		}
+
+		echo.join();
+		server.close();
+		return total / 1e6 / ROUNDS;
+	}
+
+	private static void write(Image image, DataOutputStream out, boolean bulk)
+		throws IOException
+	{
+		if (bulk)
+		{
+			image.write(out);
+			return;
+		}
+
+		out.writeInt(image.getWidth());
+		out.writeInt(image.getHeight());
+		for (int pixel : image.getPixels())
+		{
+			out.writeInt(pixel);
+		}
+	}
+
+	private static Image read(DataInputStream in, boolean bulk)
+		throws IOException
+	{
+		if (bulk) return Image.read(in);
+
+		Image image = new Image(in.readInt(), in.readInt());
+		for (int i = 0; i < image.getSize(); i++)
+		{
+			image.getPixels()[i] = in.readInt();
+		}
+		return image;
+	}
+
+	/**
+	The streams for one side of a connection, set up either the old or the
+	new way.
+	*/
+	private static class Streams
+	{
+		final DataInputStream in;
+		final DataOutputStream out;
+
+		Streams(Socket socket, boolean bulk) throws IOException
+		{
+			if (bulk)
+			{
+				in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream(), RenderSiren.STREAM_BUFFER));
+				out = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream(), RenderSiren.STREAM_BUFFER));
+			}
+			else
+			{
+				socket.setReceiveBufferSize(512);
+				socket.setSendBufferSize(512);
+				in = new DataInputStream(socket.getInputStream());
+				out = new DataOutputStream(socket.getOutputStream());
+			}
+		}
+	}
+}
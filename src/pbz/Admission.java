@@ -0,0 +1,128 @@
+package pbz;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Decides which requests the server takes on. Every request is checked against
+the limits configured in `RenderSiren` while it is being read, before
+anything is allocated for it, so a request for a huge canvas or for more
+images than the server is willing to hold costs no more than reading its
+headers. One `Admission` keeps track of the pixel bytes a single request has
+sent so far.
+
+Only so many requests are taken on at once. Any more are turned away as busy
+straight away rather than queued behind the others, which keeps the wait of
+the requests that were taken on bounded, and lets an overloaded server get
+through what it has rather than run out of memory.
+*/
+final class Admission
+{
+    private static final AtomicInteger taken = new AtomicInteger();
+    private static final AtomicLong sessionPixels = new AtomicLong();
+
+    private long bytesLeft = RenderSiren.MAX_REQUEST_BYTES;
+
+    /**
+    Fails unless a canvas of the given size may be drawn.
+    */
+    static void checkCanvas(int width, int height) throws RenderException
+    {
+        if (width < 0 || height < 0)
+            throw new RenderException(Protocol.INVALID, "Canvas of " +
+                width + "x" + height + " pixels");
+        if ((long)width * height > RenderSiren.MAX_CANVAS_PIXELS)
+            throw new RenderException(Protocol.TOO_LARGE, "Canvas of " +
+                width + "x" + height + " pixels is over the limit of " +
+                RenderSiren.MAX_CANVAS_PIXELS);
+    }
+
+    /**
+    Fails unless all the canvases of a batch, with the given number of pixels
+    between them, may be drawn at once.
+    */
+    static void checkBatch(long pixels) throws RenderException
+    {
+        if (pixels > RenderSiren.MAX_BATCH_PIXELS)
+            throw new RenderException(Protocol.TOO_LARGE, "Batch of " +
+                pixels + " pixels is over the limit of " +
+                RenderSiren.MAX_BATCH_PIXELS);
+    }
+
+    /**
+    Fails unless a request may hold the given number of instructions, or of
+    images in its table, or a session the given number of slots, or a batch
+    the given number of canvases.
+    */
+    static void checkCount(int count, String what) throws RenderException
+    {
+        if (count < 0)
+            throw new RenderException(Protocol.INVALID, "Negative number " +
+                "of " + what + ": " + count);
+        if (count > RenderSiren.MAX_INSTRUCTIONS)
+            throw new RenderException(Protocol.TOO_LARGE, count + " " + what +
+                " are over the limit of " + RenderSiren.MAX_INSTRUCTIONS);
+    }
+
+    /**
+    Returns the number of pixels the request may still send.
+    */
+    long pixelsLeft()
+    {
+        return bytesLeft / 4;
+    }
+
+    /**
+    Counts an image the request has sent against its limit.
+    */
+    void charge(Image image)
+    {
+        bytesLeft -= image.getSize() * 4L;
+    }
+
+    /**
+    Takes a request on, or fails if there are too many already. Every
+    request taken on must be let go of with `leave` once it is answered.
+    */
+    static void enter() throws RenderException
+    {
+        if (taken.incrementAndGet() > RenderSiren.MAX_PENDING)
+        {
+            taken.decrementAndGet();
+            throw new RenderException(Protocol.BUSY, "Over " +
+                RenderSiren.MAX_PENDING + " requests in progress");
+        }
+    }
+
+    /**
+    Lets go of a request taken on with `enter`.
+    */
+    static void leave()
+    {
+        taken.decrementAndGet();
+    }
+
+    /**
+    Counts the given number of pixels more (or fewer, if negative) as held by
+    the canvases of `CanvasSession`s, or fails if that would take them over
+    the limit across all connections.
+    */
+    static void holdSession(long pixels) throws RenderException
+    {
+        if (sessionPixels.addAndGet(pixels) > RenderSiren.MAX_SESSION_PIXELS &&
+            pixels > 0)
+        {
+            sessionPixels.addAndGet(-pixels);
+            throw new RenderException(Protocol.BUSY, "Sessions hold over " +
+                RenderSiren.MAX_SESSION_PIXELS + " pixels");
+        }
+    }
+
+    /**
+    Lets go of pixels held with `holdSession`.
+    */
+    static void releaseSession(long pixels)
+    {
+        sessionPixels.addAndGet(-pixels);
+    }
+}
@@ -0,0 +1,278 @@
+package pbz;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+Images kept by the server under a name, so clients can draw them by naming
+them (see `DrawInstruction`) without ever sending their pixels. Each asset is
+a file in one directory holding the raw pixels, written once by `register`:
+
+    "ARGB", width, height, the `ContentHash` of the image,
+    the pixels as big endian integers, exactly like `Image.write`
+
+When the server starts, every file is memory mapped rather than read, so
+nothing is decoded and the pixels come from the page cache, shared with
+every other process that maps them and kept across restarts. An asset is
+only copied out of the mapping when it is drawn, and then kept in the
+`ImageCache` like an upload with the same hash would be, which also means
+clients that do send an asset's pixels by hash never have to upload it.
+A store that premultiplies does so as it copies assets out.
+*/
+class AssetStore
+{
+	static final int MAGIC = 0x41524742;
+	static final String SUFFIX = ".argb";
+	private static final int HEADER = 12 + ContentHash.LENGTH;
+
+	private final ImageCache cache;
+	private final boolean premultiply;
+	private final Map<String, Asset> byName = new HashMap<>();
+	private final Map<ContentHash, Asset> byHash = new HashMap<>();
+
+	/**
+	Create an empty store that keeps the assets it copies out in the cache.
+	*/
+	public AssetStore(ImageCache cache)
+	{
+		this(cache, false);
+	}
+
+	/**
+	Same as the other constructor, but premultiplies the assets it copies
+	out if `premultiply` is set.
+	*/
+	public AssetStore(ImageCache cache, boolean premultiply)
+	{
+		this.cache = cache;
+		this.premultiply = premultiply;
+	}
+
+	/**
+	Maps every asset in the directory. A directory that does not exist holds
+	no assets, and files that are not assets, or are over 2 GB and cannot be
+	mapped, are skipped with a warning.
+	*/
+	public static AssetStore open(File directory, ImageCache cache)
+	{
+		return open(directory, cache, false);
+	}
+
+	/**
+	Same as the other `open`, but the store premultiplies the assets it
+	copies out if `premultiply` is set.
+	*/
+	public static AssetStore open(File directory, ImageCache cache,
+		boolean premultiply)
+	{
+		AssetStore store = new AssetStore(cache, premultiply);
+		File[] files = directory.listFiles();
+		if (files == null) return store;
+
+		for (File file : files)
+		{
+			String filename = file.getName();
+			if (!file.isFile() || !filename.endsWith(SUFFIX)) continue;
+
+			String name = filename.substring(0,
+				filename.length() - SUFFIX.length());
+			try
+			{
+				store.add(name, map(file));
+			}
+			catch (IOException e)
+			{
+				System.err.println("Skipping asset " + file + ": " + e);
+			}
+		}
+		return store;
+	}
+
+	/**
+	Returns the asset with the given name, or null if there is none.
+	*/
+	public Image get(String name)
+	{
+		Asset asset;
+		synchronized (this)
+		{
+			asset = byName.get(name);
+		}
+		return asset == null ? null : load(asset);
+	}
+
+	/**
+	Returns the asset with the given hash, or null if there is none.
+	*/
+	public Image get(ContentHash hash)
+	{
+		Asset asset;
+		synchronized (this)
+		{
+			asset = byHash.get(hash);
+		}
+		return asset == null ? null : load(asset);
+	}
+
+	/**
+	Returns the number of assets.
+	*/
+	public synchronized int size()
+	{
+		return byName.size();
+	}
+
+	/**
+	Writes the image into the directory as the asset with the given name,
+	replacing any asset of that name. A running server only sees it once it
+	is started again.
+	*/
+	public static void register(File directory, String name, Image image)
+		throws IOException
+	{
+		if (name.isEmpty() || name.contains("/") ||
+			name.contains(File.separator))
+			throw new IllegalArgumentException("Bad asset name: " + name);
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+
+		// Written next to where it goes and moved there in one go, so a
+		// server starting meanwhile never maps half an asset
+		File target = new File(directory, name + SUFFIX);
+		File temp = File.createTempFile(name, ".tmp", directory);
+		try (DataOutputStream out = new DataOutputStream(
+			new FileOutputStream(temp)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(image.getWidth());
+			out.writeInt(image.getHeight());
+			ContentHash.of(image).write(out);
+			Image.writeInts(out, image.getPixels(), 0, image.getSize(),
+				image.isPremultiplied());
+		}
+		catch (IOException e)
+		{
+			temp.delete();
+			throw e;
+		}
+		Files.move(temp.toPath(), target.toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	Converts images to assets: the first argument is the directory and every
+	other one an image file, whose name without its extension becomes the
+	name of the asset.
+	*/
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: AssetStore <directory> <image>...");
+			System.exit(1);
+		}
+
+		File directory = new File(args[0]);
+		for (int i = 1; i < args.length; i++)
+		{
+			File file = new File(args[i]);
+			Image image = Image.load(file.getPath());
+			if (image == null)
+				throw new IOException("Cannot load " + file);
+
+			String name = file.getName().replaceFirst("\\.[^.]*$", "");
+			register(directory, name, image);
+			System.out.println("Registered " + name + " (" +
+				image.getWidth() + "x" + image.getHeight() + ")");
+		}
+	}
+
+	/**
+	Adds an asset under its name and hash.
+	*/
+	private synchronized void add(String name, Asset asset)
+	{
+		byName.put(name, asset);
+		byHash.put(asset.hash, asset);
+	}
+
+	/**
+	Returns the cached copy of the asset, copying it out of its mapping first
+	if it is not cached.
+	*/
+	private Image load(Asset asset)
+	{
+		Image image = cache.get(asset.hash);
+		if (image == null)
+		{
+			ByteBuffer pixels = asset.pixels.duplicate();
+			image = new Image(pixels.getInt(4), pixels.getInt(8));
+			pixels.position(HEADER);
+			pixels.asIntBuffer().get(image.getPixels(), 0, image.getSize());
+			if (premultiply) image.premultiply();
+			cache.put(asset.hash, image);
+		}
+		return image;
+	}
+
+	/**
+	Maps an asset file and checks its header.
+	*/
+	private static Asset map(File file) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel())
+		{
+			if (channel.size() < HEADER)
+				throw new IOException("Too short to be an asset");
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Too large to be mapped");
+
+			// The mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+				0, channel.size());
+			if (buffer.getInt(0) != MAGIC)
+				throw new IOException("Not an asset");
+
+			long width = buffer.getInt(4);
+			long height = buffer.getInt(8);
+			if (width < 0 || height < 0 ||
+				HEADER + width * height * 4 != channel.size())
+				throw new IOException("Wrong size for " + width + "x" +
+					height + " pixels");
+
+			byte[] digest = new byte[ContentHash.LENGTH];
+			ByteBuffer header = buffer.duplicate();
+			header.position(12);
+			header.get(digest);
+			return new Asset(ContentHash.wrap(digest), buffer);
+		}
+	}
+
+	/**
+	A mapped asset file.
+	*/
+	private static class Asset
+	{
+		final ContentHash hash;
+		final ByteBuffer pixels;
+
+		Asset(ContentHash hash, ByteBuffer pixels)
+		{
+			this.hash = hash;
+			this.pixels = pixels;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package pbz;
+
+/**
+Told by `RenderClient` about every band of a result as soon as it has arrived,
+so a caller can show a big canvas from the top down while the server is still
+drawing the rest of it.
+*/
+public interface BandListener
+{
+    /**
+    Called once the rows from `y` to `y + rows` of the canvas are final. The
+    rows below are still empty. The canvas is the one `RenderClient.render`
+    will return.
+    */
+    void bandReceived(Image canvas, int y, int rows);
+}
@@ -1,9 +1,22 @@
 package pbz;
 
+import java.awt.Rectangle;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 /**
 Proof of concept implementation of a way to store and blit arrays of integers
 interpreted as pixels.
+
+A bitmap can hold its pixels premultiplied (see `premultiply`), in which case
+everything drawn on it composites with `Pixel.overColor` rather than
+`Pixel.blendColor` and has to be premultiplied as well.
+
+A bitmap can also keep its pixels outside of the Java heap, in an `IntBuffer`,
+where they put no load on the garbage collector and can be handed to the OS
+as they are. Everything can be drawn onto such a bitmap, the blits working on
+a short window of each row at a time, but it cannot be drawn itself and has
+no pixel array to return from `getPixels`.
 */
 class Bitmap
 {
@@ -11,6 +24,21 @@ class Bitmap
 	protected int height;
 	protected int size;
 	protected int[] pixels;
+	private IntBuffer offHeap;
+	private boolean premultiplied;
+
+	/**
+	Most pixels of an off-heap bitmap drawn on in one go, and the size of
+	the window of every thread that does it.
+	*/
+	private static final int WINDOW = 4096;
+	private static final ThreadLocal<int[]> windows =
+		ThreadLocal.withInitial(() -> new int[WINDOW]);
+
+	/**
+	Worked out on demand and forgotten whenever this bitmap is drawn on.
+	*/
+	private Opacity opacity;
 
 	/**
 	Create a new Bitmap instance and allocate an integer buffer for storing the
@@ -24,11 +52,55 @@ class Bitmap
 		setPixels(new int[getSize()]);
 	}
 
+	/**
+	Create a Bitmap that uses the given pixels, one row after the other,
+	rather than allocating its own.
+	*/
+	protected Bitmap(int width, int height, int[] pixels)
+	{
+		if (pixels.length != width * height)
+			throw new IllegalArgumentException(pixels.length +
+				" pixels for a " + width + "x" + height + " bitmap");
+
+		this.setWidth(width);
+		this.setHeight(height);
+		setSize(width * height);
+		setPixels(pixels);
+	}
+
+	/**
+	Create a Bitmap that keeps its pixels, one row after the other, in the
+	given buffer, which is usually a view of a direct `ByteBuffer`.
+	*/
+	protected Bitmap(int width, int height, IntBuffer offHeap)
+	{
+		if (offHeap.capacity() != width * height)
+			throw new IllegalArgumentException(offHeap.capacity() +
+				" pixels for a " + width + "x" + height + " bitmap");
+
+		this.setWidth(width);
+		this.setHeight(height);
+		setSize(width * height);
+		this.offHeap = offHeap;
+	}
+
 	/**
 	Sets every pixel to the same color.
 	*/
 	public void clear(int color)
 	{
+		opacity = null;
+		if (offHeap != null)
+		{
+			int[] window = windows.get();
+			Arrays.fill(window, color);
+			for (int i = 0; i < getSize(); i += WINDOW)
+			{
+				store(window, i, Math.min(WINDOW, getSize() - i));
+			}
+			return;
+		}
+
 		for (int i = 0; i < getSize(); i++)
 		{
 			getPixels()[i] = color;
@@ -41,15 +113,34 @@ class Bitmap
 	public void drawPixel(int x, int y, int color)
 	{
 		if (x >= getWidth() || x < 0 || y >= getHeight()) return;
+		opacity = null;
 
 		int index = x + y * getWidth();
 		if (0 <= index && index < getSize())
 
 		// If the color is completely opaque, don't blend it.
 		if (Pixel.getChannelAlpha(color) == 255)
-			getPixels()[index] = color;
+			putColor(index, color);
 		else
-			getPixels()[index] = Pixel.blendColor(getPixels()[index], color);
+			putColor(index, blend(colorAt(index), color));
+	}
+
+	/**
+	Draws a pixel like `drawPixel` does, but only if it lies within the clip
+	rectangle, which must be within this bitmap.
+	*/
+	private void drawPixel(int x, int y, int color, Rectangle clip)
+	{
+		if (x < clip.x || x >= clip.x + clip.width ||
+			y < clip.y || y >= clip.y + clip.height) return;
+
+		int index = x + y * getWidth();
+
+		// If the color is completely opaque, don't blend it.
+		if (Pixel.getChannelAlpha(color) == 255)
+			putColor(index, color);
+		else
+			putColor(index, blend(colorAt(index), color));
 	}
 
 	/**
@@ -57,8 +148,18 @@ class Bitmap
 	*/
 	public void drawPixel(int index, int color)
 	{
+		opacity = null;
 		if (index >= 0 && index > getSize())
-		getPixels()[index] = Pixel.blendColor(getPixels()[index], color);
+		putColor(index, blend(colorAt(index), color));
+	}
+
+	/**
+	Blends a color onto another one the way this bitmap holds its pixels.
+	*/
+	private int blend(int under, int color)
+	{
+		return premultiplied ? Pixel.overColor(under, color) :
+			Pixel.blendColor(under, color);
 	}
 
 	/**
@@ -68,8 +169,9 @@ class Bitmap
 	{
 		// Dont' draw this pixel if it is not even on the destination bitmap.
 		if (x >= getWidth() || x < 0 || y >= getHeight()) return;
+		opacity = null;
 		int index = x + y * getWidth();
-		if (0 <= index && index < getSize()) getPixels()[index] = color;
+		if (0 <= index && index < getSize()) putColor(index, color);
 	}
 
 	/**
@@ -78,105 +180,181 @@ class Bitmap
 	public int getPixel(int x, int y)
 	{
 		int index = x + y * getWidth();
-		return index >= 0 && index < getSize() ? getPixels()[index] : 0;
+		return index >= 0 && index < getSize() ? colorAt(index) : 0;
 	}
 
 	/**
-	Draws a bitmap onto this bitmap at the specified position.
+	Returns the color at an index into the pixels, wherever they are kept.
 	*/
-	private void blitPos(Bitmap inbmp, double x, double y)
+	private int colorAt(int index)
 	{
-		int pixel = 0;
-
-		x -= inbmp.getWidth() * 0.5f;
-		y -= inbmp.getHeight() * 0.5f;
-
-		// Bounds checking:
-		if (x + inbmp.getWidth() <= 0 || x >= getWidth() ||
-			y + inbmp.getHeight() <= 0 || y >= getHeight())
-			return;
-
-		for (int yy = 0; yy < inbmp.getHeight(); yy++)
-		{
-			int row = (int)(y + yy);
-			for (int xx = 0; xx < inbmp.getWidth(); xx++)
-			{
-				drawPixel((int)(x + xx), row, inbmp.getPixels()[pixel]);
-				pixel++;
-			}
-		}
+		return offHeap != null ? offHeap.get(index) : pixels[index];
 	}
 
 	/**
-	Blits a bitmap using a rotation angle in radians.
+	Sets the color at an index into the pixels, wherever they are kept.
 	*/
-	private void blitRot(Bitmap inbmp, double x, double y, double rot)
+	private void putColor(int index, int color)
 	{
-		// Store the rotated angle
-		double ssin = Math.sin(-rot);
-		double ccos = Math.cos(-rot);
+		if (offHeap != null) offHeap.put(index, color);
+		else pixels[index] = color;
+	}
 
-		int hw = (int)(inbmp.getWidth() * 0.5f);
-		int hh = (int)(inbmp.getHeight() * 0.5f);
+	/**
+	Copies `count` pixels of an off-heap bitmap, from `index` on, into the
+	window of this thread and returns it.
+	*/
+	private int[] load(int index, int count)
+	{
+		int[] window = windows.get();
+		IntBuffer view = offHeap.duplicate();
+		view.position(index);
+		view.get(window, 0, count);
+		return window;
+	}
 
-		// Get the bounding rect
+	/**
+	Copies the first `count` pixels of a window back to an off-heap bitmap,
+	from `index` on.
+	*/
+	private void store(int[] window, int index, int count)
+	{
+		IntBuffer view = offHeap.duplicate();
+		view.position(index);
+		view.put(window, 0, count);
+	}
 
-		int left   = -hw;
-		int right  =  hw;
-		int top    =  hh;
-		int bottom = -hh;
+	/**
+	Draws a bitmap onto this bitmap at the specified position. Clips once up
+	front and then goes through the source a row at a time, copying opaque
+	runs, skipping transparent ones and blending the rest, as told by the
+	source's `Opacity`. Returns the pixels drawn like `blitRow` does.
+	*/
+	private long blitPos(Bitmap inbmp, double x, double y, Rectangle clip)
+	{
+		// Source pixel (xx, yy) lands on (originx + xx, originy + yy)
+		int originx = (int)Math.floor(x - inbmp.getWidth() * 0.5f);
+		int originy = (int)Math.floor(y - inbmp.getHeight() * 0.5f);
 
-		// Get the points of the rotated image
+		int firstx = Math.max(0, clip.x - originx);
+		int endx = Math.min(inbmp.getWidth(), clip.x + clip.width - originx);
+		int firsty = Math.max(0, clip.y - originy);
+		int endy = Math.min(inbmp.getHeight(), clip.y + clip.height - originy);
+		if (firstx >= endx || firsty >= endy) return 0;
 
-		int p1x = (int)(left 	* ssin + top 	* ccos);
-		int p1y = (int)(left 	* ccos - top 	* ssin);
-		int p2x = (int)(right 	* ssin + top 	* ccos);
-		int p2y = (int)(right 	* ccos - top 	* ssin);
-		int p3x = (int)(left 	* ssin + bottom * ccos);
-		int p3y = (int)(left 	* ccos - bottom * ssin);
-		int p4x = (int)(right 	* ssin + bottom * ccos);
-		int p4y = (int)(right 	* ccos - bottom * ssin);
+		Opacity srcOpacity = inbmp.getOpacity();
+		if (srcOpacity.getKind() == Opacity.TRANSPARENT) return 0;
 
-		// Get the furthest and closest point at each axis
+		long drawn = 0;
+		for (int yy = firsty; yy < endy; yy++)
+		{
+			drawn += blitRow(inbmp, srcOpacity, yy,
+				originx + (originy + yy) * getWidth(), firstx, endx);
+		}
+		return drawn;
+	}
 
-		int minx = Math.min(p1x, Math.min(p2x, Math.min(p3x, p4x)));
-		int miny = Math.min(p1y, Math.min(p2y, Math.min(p3y, p4y)));
-		int maxx = Math.max(p1x, Math.max(p2x, Math.max(p3x, p4x)));
-		int maxy = Math.max(p1y, Math.max(p2y, Math.max(p3y, p4y)));
+	/**
+	Draws the columns from `firstx` up to `endx` of row `yy` of a bitmap with
+	the given opacity, source column 0 landing on `destIndex` in this bitmap's
+	pixels. Copies opaque runs, skips transparent ones and blends the rest.
+	Returns the number of pixels copied, plus the number blended shifted left
+	by 32 bits, which adds up over many calls without the two mixing.
+	*/
+	private long blitRow(Bitmap inbmp, Opacity srcOpacity, int yy,
+		int destIndex, int firstx, int endx)
+	{
+		if (offHeap == null)
+			return blitRow(inbmp, srcOpacity, yy, getPixels(), destIndex,
+				firstx, endx);
+		if (srcOpacity.getRowKind(yy) == Opacity.TRANSPARENT) return 0;
 
-		// Bounds checking
+		long drawn = 0;
+		for (int x = firstx; x < endx; x += WINDOW)
+		{
+			int to = Math.min(endx, x + WINDOW);
+			int[] window = load(destIndex + x, to - x);
+			drawn += blitRow(inbmp, srcOpacity, yy, window, -x, x, to);
+			store(window, destIndex + x, to - x);
+		}
+		return drawn;
+	}
 
-		if (x + maxx <= 0 || x + minx >= getWidth() ||
-		y + maxx <= 0 || y + miny >= getHeight())
-		return;
+	/**
+	Does the drawing for the other `blitRow`, into `dest`, which is either
+	the pixels of this bitmap or a window onto them that source column 0
+	lands on `destIndex` of.
+	*/
+	private long blitRow(Bitmap inbmp, Opacity srcOpacity, int yy,
+		int[] dest, int destIndex, int firstx, int endx)
+	{
+		int rowKind = srcOpacity.getRowKind(yy);
+		if (rowKind == Opacity.TRANSPARENT) return 0;
 
-		// Use those points to draw the rotated pixels
+		int[] src = inbmp.getPixels();
+		int srcWidth = inbmp.getWidth();
+		int srcRow = yy * srcWidth;
+		int[] runs = srcOpacity.getRuns(yy);
 
-		for (int yy = miny - p1y; yy < maxy - p1y + 1; yy++)
+		if (rowKind == Opacity.OPAQUE)
+		{
+			System.arraycopy(src, srcRow + firstx, dest, destIndex + firstx,
+				endx - firstx);
+			return endx - firstx;
+		}
+		else if (runs == null)
 		{
-			for (int xx = minx - p1x; xx < maxx - p1x + 1; xx++)
+			Pixel.blendSpan(dest, destIndex + firstx, src, srcRow + firstx,
+				endx - firstx, premultiplied);
+			return (long)(endx - firstx) << 32;
+		}
+		else
+		{
+			long drawn = 0;
+			for (int i = 0; i < runs.length; i += 2)
 			{
-				int srcx = (int)(xx * ssin + yy * ccos);
-				int srcy = (int)(yy * ssin - xx * ccos);
-				int destx = xx - p4x;
-				int desty = yy - p4y;
+				int from = Math.max(firstx, runs[i]);
+				int to = Math.min(endx,
+					i + 2 < runs.length ? runs[i + 2] : srcWidth);
+				if (from >= to || runs[i + 1] == Opacity.TRANSPARENT)
+					continue;
 
-				if (srcx < inbmp.getWidth() && srcx >= 0 &&
-				srcy < inbmp.getHeight() && srcy >= 0)
+				if (runs[i + 1] == Opacity.OPAQUE)
 				{
-					int index = srcx + srcy * inbmp.getWidth();
-					int sample = inbmp.getPixels()[index];
-					drawPixel((int)(x + destx), (int)(y + desty), sample);
+					System.arraycopy(src, srcRow + from, dest,
+						destIndex + from, to - from);
+					drawn += to - from;
+				}
+				else
+				{
+					Pixel.blendSpan(dest, destIndex + from, src,
+						srcRow + from, to - from, premultiplied);
+					drawn += (long)(to - from) << 32;
 				}
 			}
+			return drawn;
 		}
 	}
 
 	/**
-	Draws a bitmap with a given scale at the specified position.
+	Blits a bitmap using a rotation angle in radians.
+	*/
+	private long blitRot(Bitmap inbmp, double x, double y, double rot,
+		Rectangle clip)
+	{
+		return blitTransformed(inbmp, x, y, rot, 1, 1, inbmp.getWidth(),
+			inbmp.getHeight(), 0, clip);
+	}
+
+	/**
+	Draws a bitmap with a given scale at the specified position. The scaled
+	bitmap comes from the `ScaleCache` and is drawn a row at a time like
+	`blitPos` does, unless it is too big to cache. A copy is only made when a
+	good part of it is going to be drawn; a tile that sees only a small part
+	of a big bitmap samples just that part, unless there is a copy already.
 	*/
-	private void blitScl(Bitmap inbmp, double x, double y, double sclx,
-		double scly)
+	private long blitScl(Bitmap inbmp, double x, double y, double sclx,
+		double scly, Rectangle clip)
 	{
 		int fwidth = (int)(inbmp.getWidth() * sclx);
 		int fheight = (int)(inbmp.getHeight() * scly);
@@ -187,44 +365,159 @@ class Bitmap
 		y -= fheight * 0.5f;
 
 		// Bounds checking
-		if (x + fwidth <= 0 || x >= getWidth() ||
+		if (fwidth <= 0 || fheight <= 0 ||
+			x + fwidth <= 0 || x >= getWidth() ||
 			y + fheight <= 0 || y >= getHeight())
-			return;
+			return 0;
+
+		Bitmap scaled = ScaleCache.shared.cached(inbmp, fwidth, fheight);
+		if (scaled == null)
+		{
+			double visible = Math.max(0, Math.min(x + fwidth,
+				clip.x + clip.width) - Math.max(x, clip.x)) *
+				Math.max(0, Math.min(y + fheight, clip.y + clip.height) -
+				Math.max(y, clip.y));
+			if (visible * 4 >= (double)fwidth * fheight)
+				scaled = ScaleCache.shared.scaled(inbmp, fwidth, fheight);
+		}
+		if (scaled == null)
+			return blitSclSampled(inbmp, x, y, fwidth, fheight, clip);
+
+		Opacity opacity = scaled.getOpacity();
+		if (opacity.getKind() == Opacity.TRANSPARENT) return 0;
+
+		// Every column is truncated on its own, so the one just left of 0
+		// lands on column 0 as well, before the one that really belongs
+		// there. From there on they are consecutive.
+		int first = Math.max(0, (int)Math.ceil(-x));
+		int firstCol = (int)(x + first);
+		int firstx = Math.max(first, clip.x - firstCol + first);
+		int endx = Math.min(fwidth, clip.x + clip.width - firstCol + first);
+
+		long drawn = 0;
+		for (int yout = 0; yout < fheight; yout++)
+		{
+			// Skip whole rows outside of the clip rectangle
+			int row = (int)(y + yout);
+			if (row < clip.y || row >= clip.y + clip.height) continue;
+
+			if (first > 0)
+				drawPixel((int)(x + first - 1), row,
+					scaled.getPixels()[first - 1 + yout * fwidth], clip);
+			if (firstx < endx)
+				drawn += blitRow(scaled, opacity, yout,
+					firstCol - first + row * getWidth(), firstx, endx);
+		}
+		return drawn;
+	}
 
+	/**
+	What `blitScl` does for bitmaps it does not draw from a scaled copy: picks
+	the source pixel every destination pixel within the clip rectangle falls
+	on as it goes. `x` and `y` are the top left corner. Returns the pixels
+	drawn like `blitPos` does.
+	*/
+	private long blitSclSampled(Bitmap inbmp, double x, double y, int fwidth,
+		int fheight, Rectangle clip)
+	{
 		double stepx = (double) inbmp.getWidth() / (double)fwidth;
 		double stepy = (double) inbmp.getHeight() / (double)fheight;
 		double iny = 0;
 		int yout = 0;
+		long copied = 0;
+		long blended = 0;
+
+		// Only the columns that can land within the clip rectangle, with the
+		// source column of the first one found by stepping there the same
+		// way as always, so every pixel comes out exactly the same
+		int fromx = Math.max(0, (int)Math.floor(clip.x - x) - 1);
+		int tox = Math.min(fwidth, (int)Math.ceil(clip.x + clip.width - x) + 1);
+		double startx = 0;
+		for (int xout = 0; xout < fromx; xout++)
+		{
+			startx += stepx;
+		}
 
 		while (yout < fheight)
 		{
-			double inx = 0;
-			int xout = 0;
-			while (xout < fwidth)
+			// Skip whole rows outside of the clip rectangle
+			int row = (int)(y + yout);
+			if (row >= clip.y && row < clip.y + clip.height)
 			{
-				int sample = inbmp.getPixel((int)inx, (int)iny);
-				drawPixel((int)(x + xout), (int)(y + yout), sample);
-
-				inx += stepx;
-				xout++;
+				double inx = startx;
+				int xout = fromx;
+				while (xout < tox)
+				{
+					int sample = inbmp.getPixel((int)inx, (int)iny);
+					int col = (int)(x + xout);
+					if (col >= clip.x && col < clip.x + clip.width)
+					{
+						drawPixel(col, row, sample, clip);
+						if (Pixel.getChannelAlpha(sample) == 255) copied++;
+						else blended++;
+					}
+
+					inx += stepx;
+					xout++;
+				}
 			}
 			iny += stepy;
 			yout++;
 		}
+		return copied + (blended << 32);
 	}
 
 	/**
 	Blits a bitmap with rotation and scaling applied at the given position.
 	*/
-	private void blitRotScl(Bitmap inbmp, double x, double y, double rot,
-		double sclx, double scly)
+	private long blitRotScl(Bitmap inbmp, double x, double y, double rot,
+		double sclx, double scly, Rectangle clip)
+	{
+		// Nothing sensible can be drawn at no scale at all
+		if (sclx == 0 || scly == 0 || Double.isNaN(sclx) || Double.isNaN(scly))
+			return 0;
+
+		// Shrinking to half or less samples the pyramid level closest in
+		// size instead, which is smaller and aliases less. The destination
+		// area stays what the original would cover.
+		int level = 0;
+		double shrink = Math.max(Math.abs(sclx), Math.abs(scly));
+		while (shrink * (2 << level) <= 1 &&
+			inbmp.getWidth() >> level > 1 && inbmp.getHeight() >> level > 1)
+			level++;
+		Bitmap source = ScaleCache.shared.level(inbmp, level);
+
+		return blitTransformed(source, x, y, rot,
+			sclx * inbmp.getWidth() / source.getWidth(),
+			scly * inbmp.getHeight() / source.getHeight(),
+			(int)(inbmp.getWidth() * sclx), (int)(inbmp.getHeight() * scly), 1,
+			clip);
+	}
+
+	/**
+	Kernel shared by the rotating blits. Works out the destination area from
+	the rotated corner points of a `width` by `height` rectangle (grown by
+	`margin` on the top left), clips the rows and every row's span against the
+	clip rectangle and the source bitmap up front, and then steps the source
+	coordinates along each span in 16.16 fixed point, writing straight into
+	the pixel array, or a window onto the pixels of an off-heap bitmap.
+
+	The source position of a destination pixel only depends on where that
+	pixel is, never on where the clip rectangle starts, so clipped and
+	unclipped blits agree on every pixel. Returns the pixels drawn like
+	`blitRow` does.
+	*/
+	private long blitTransformed(Bitmap inbmp, double x, double y, double rot,
+		double sclx, double scly, int width, int height, int margin,
+		Rectangle clip)
 	{
-		int nwidth  = (int)(inbmp.getWidth() * sclx);
-		int nheight = (int)(inbmp.getHeight() * scly);
 		double ssin = Math.sin(-rot);
 		double ccos = Math.cos(-rot);
-		int hw = (int)(nwidth  * 0.5f);
-		int hh = (int)(nheight * 0.5f);
+		int hw = (int)(width * 0.5f);
+		int hh = (int)(height * 0.5f);
+
+		// Get the points of the rotated rectangle
+
 		int left   = -hw;
 		int right  =  hw;
 		int top    =  hh;
@@ -242,30 +535,104 @@ class Bitmap
 		int maxx = Math.max(p1x, Math.max(p2x, Math.max(p3x, p4x)));
 		int maxy = Math.max(p1y, Math.max(p2y, Math.max(p3y, p4y)));
 
-		// Bounds checking
-
-		if (x + maxx <= 0 || x + minx >= getWidth() ||
-			y + maxx <= 0 || y + miny >= getHeight())
-			return;
-
-		for (int yy = miny - p1y - 1; yy < maxy - p1y + 1; yy++)
+		// Loop coordinates xx/yy land on the destination pixel
+		// (originx + xx, originy + yy).
+		int originx = (int)Math.floor(x) - p4x;
+		int originy = (int)Math.floor(y) - p4y;
+
+		int firstx = Math.max(minx - p1x - margin, clip.x - originx);
+		int lastx = Math.min(maxx - p1x, clip.x + clip.width - 1 - originx);
+		int firsty = Math.max(miny - p1y - margin, clip.y - originy);
+		int lasty = Math.min(maxy - p1y, clip.y + clip.height - 1 - originy);
+		if (firstx > lastx || firsty > lasty) return 0;
+
+		// Source position of loop coordinate (xx, yy) in 16.16 fixed point:
+		// u = ((xx * ssin + yy * ccos) / sclx) and
+		// v = ((yy * ssin - xx * ccos) / scly).
+		long dudx = Math.round(ssin / sclx * 65536);
+		long dvdx = Math.round(-ccos / scly * 65536);
+		long maxu = ((long)inbmp.getWidth() << 16) - 1;
+		long maxv = ((long)inbmp.getHeight() << 16) - 1;
+
+		int[] src = inbmp.getPixels();
+		int[] pixels = offHeap == null ? getPixels() : null;
+		int srcWidth = inbmp.getWidth();
+		boolean over = premultiplied;
+		long total = 0;
+		long copied = 0;
+
+		for (int yy = firsty; yy <= lasty; yy++)
 		{
-			for (int xx = minx - p1x - 1; xx < maxx - p1x + 1; xx++)
+			long u0 = Math.round(yy * ccos / sclx * 65536);
+			long v0 = Math.round(yy * ssin / scly * 65536);
+
+			// Only walk the part of the row that samples the source bitmap
+			long from = Math.max(firstx, Math.max(
+				spanStart(u0, dudx, maxu), spanStart(v0, dvdx, maxv)));
+			long to = Math.min(lastx, Math.min(
+				spanEnd(u0, dudx, maxu), spanEnd(v0, dvdx, maxv)));
+			if (from > to) continue;
+
+			long u = u0 + from * dudx;
+			long v = v0 + from * dvdx;
+			int index = (originx + (int)from) + (originy + yy) * getWidth();
+			int count = (int)(to - from + 1);
+			total += count;
+
+			// Off the heap the span is drawn a window at a time
+			for (int done = 0; done < count; )
 			{
-				int srcx = (int)((xx * ssin + yy * ccos) / sclx);
-				int srcy = (int)((yy * ssin - xx * ccos) / scly);
-				int destx = xx - p4x;
-				int desty = yy - p4y;
-
-				if (srcx < inbmp.getWidth() && srcx >= 0 && srcy < inbmp.getHeight() &&
-					srcy >= 0)
+				int length = pixels != null ? count :
+					Math.min(count - done, WINDOW);
+				int[] dest = pixels != null ? pixels :
+					load(index + done, length);
+				int at = pixels != null ? index + done : 0;
+				for (int end = at + length; at < end; at++)
 				{
-					int index = srcx + srcy * inbmp.getWidth();
-					int sample = inbmp.getPixels()[index];
-					drawPixel((int)(x + destx), (int)(y + desty), sample);
+					int sample = src[(int)(u >> 16) +
+						(int)(v >> 16) * srcWidth];
+
+					// If the color is completely opaque, don't blend it.
+					if (Pixel.getChannelAlpha(sample) == 255)
+					{
+						dest[at] = sample;
+						copied++;
+					}
+					else if (over)
+						dest[at] = Pixel.overColor(dest[at], sample);
+					else
+						dest[at] = Pixel.blendColor(dest[at], sample);
+
+					u += dudx;
+					v += dvdx;
 				}
+				if (pixels == null) store(dest, index + done, length);
+				done += length;
 			}
 		}
+		return copied + (total - copied << 32);
+	}
+
+	/**
+	Returns the smallest k for which 0 <= start + k * step <= max, assuming
+	there is one at all. Long.MIN_VALUE if there is no lower limit.
+	*/
+	private static long spanStart(long start, long step, long max)
+	{
+		if (step > 0) return -Math.floorDiv(start, step);
+		if (step < 0) return -Math.floorDiv(max - start, -step);
+		return start >= 0 && start <= max ? Long.MIN_VALUE : Long.MAX_VALUE;
+	}
+
+	/**
+	Returns the largest k for which 0 <= start + k * step <= max, assuming
+	there is one at all. Long.MAX_VALUE if there is no upper limit.
+	*/
+	private static long spanEnd(long start, long step, long max)
+	{
+		if (step > 0) return Math.floorDiv(max - start, step);
+		if (step < 0) return Math.floorDiv(start, -step);
+		return start >= 0 && start <= max ? Long.MAX_VALUE : Long.MIN_VALUE;
 	}
 
 	/**
@@ -274,17 +641,251 @@ class Bitmap
 	public void blitBitmap(Bitmap inbmp, double x, double y, double rot,
 		double sclx, double scly)
 	{
+		blitBitmap(inbmp, x, y, rot, sclx, scly,
+			new Rectangle(0, 0, getWidth(), getHeight()));
+	}
+
+	/**
+	Same as the other `blitBitmap`, but only draws the pixels that fall within
+	the clip rectangle. Every pixel within it comes out exactly as it would
+	without the clip, so separate parts of a bitmap can be drawn by separate
+	threads. Every blit is timed and counted in `Metrics`. Both bitmaps must
+	be premultiplied or neither.
+	*/
+	public void blitBitmap(Bitmap inbmp, double x, double y, double rot,
+		double sclx, double scly, Rectangle clip)
+	{
+		if (inbmp.premultiplied != premultiplied)
+			throw new IllegalArgumentException(premultiplied ?
+				"Cannot draw a straight bitmap onto a premultiplied one" :
+				"Cannot draw a premultiplied bitmap onto a straight one");
+
+		clip = clip.intersection(new Rectangle(0, 0, getWidth(), getHeight()));
+		if (clip.isEmpty()) return;
+		opacity = null;
+
+		long start = Metrics.ENABLED ? System.nanoTime() : 0;
+		int kind;
+		long drawn;
+
 		if (rot == 0 && sclx == 1 && scly == 1)
-			blitPos(inbmp, x, y);
+		{
+			kind = Metrics.POS;
+			drawn = blitPos(inbmp, x, y, clip);
+		}
 
 		else if (rot == 0 && sclx != 1 && scly != 1)
-			blitScl(inbmp, x, y, sclx, scly);
+		{
+			kind = Metrics.SCL;
+			drawn = blitScl(inbmp, x, y, sclx, scly, clip);
+		}
 
 		else if (rot != 0 && sclx == 1 && scly == 1)
-			blitRot(inbmp, x, y, rot);
+		{
+			kind = Metrics.ROT;
+			drawn = blitRot(inbmp, x, y, rot, clip);
+		}
+
+		else
+		{
+			kind = Metrics.ROTSCL;
+			drawn = blitRotScl(inbmp, x, y, rot, sclx, scly, clip);
+		}
+
+		if (Metrics.ENABLED)
+			Metrics.shared.blit(kind, System.nanoTime() - start,
+				drawn & 0xFFFFFFFFL, drawn >>> 32);
+	}
+
+	/**
+	Returns a rectangle that contains every pixel `blitBitmap` could draw
+	with the same arguments. It may be a little larger than necessary but
+	never smaller.
+	*/
+	public static Rectangle blitBounds(Bitmap inbmp, double x, double y,
+		double rot, double sclx, double scly)
+	{
+		double minx, miny, maxx, maxy;
+
+		if (rot == 0 && sclx == 1 && scly == 1)
+		{
+			minx = x - inbmp.getWidth() * 0.5f;
+			miny = y - inbmp.getHeight() * 0.5f;
+			maxx = minx + inbmp.getWidth();
+			maxy = miny + inbmp.getHeight();
+		}
+
+		else if (rot == 0 && sclx != 1 && scly != 1)
+		{
+			int fwidth = Math.max(0, (int)(inbmp.getWidth() * sclx));
+			int fheight = Math.max(0, (int)(inbmp.getHeight() * scly));
+			minx = x - fwidth * 0.5f;
+			miny = y - fheight * 0.5f;
+			maxx = minx + fwidth;
+			maxy = miny + fheight;
+		}
+
+		else
+		{
+			// Mirrors the corner points the rotating blits work out
+			boolean scaled = !(rot != 0 && sclx == 1 && scly == 1);
+			double ssin = Math.sin(-rot);
+			double ccos = Math.cos(-rot);
+			int hw = (int)((scaled ? (int)(inbmp.getWidth() * sclx) :
+				inbmp.getWidth()) * 0.5f);
+			int hh = (int)((scaled ? (int)(inbmp.getHeight() * scly) :
+				inbmp.getHeight()) * 0.5f);
+			int p1x = (int)(-hw * ssin + hh * ccos);
+			int p1y = (int)(-hw * ccos - hh * ssin);
+			int p2x = (int)(hw * ssin + hh * ccos);
+			int p2y = (int)(hw * ccos - hh * ssin);
+			int p3x = (int)(-hw * ssin - hh * ccos);
+			int p3y = (int)(-hw * ccos + hh * ssin);
+			int p4x = (int)(hw * ssin - hh * ccos);
+			int p4y = (int)(hw * ccos + hh * ssin);
+			int lx = Math.min(p1x, Math.min(p2x, Math.min(p3x, p4x)));
+			int ly = Math.min(p1y, Math.min(p2y, Math.min(p3y, p4y)));
+			int hx = Math.max(p1x, Math.max(p2x, Math.max(p3x, p4x)));
+			int hy = Math.max(p1y, Math.max(p2y, Math.max(p3y, p4y)));
+
+			// The destination offsets the loops run over
+			minx = x + lx - p1x - p4x - 1;
+			miny = y + ly - p1y - p4y - 1;
+			maxx = x + hx - p1x - p4x + 1;
+			maxy = y + hy - p1y - p4y + 1;
+		}
+
+		// Make up for the truncation of coordinates when drawing
+		int left = (int)Math.floor(minx) - 1;
+		int top = (int)Math.floor(miny) - 1;
+		int right = (int)Math.ceil(maxx) + 1;
+		int bottom = (int)Math.ceil(maxy) + 1;
+		return new Rectangle(left, top, right - left, bottom - top);
+	}
+
+	/**
+	Returns a rectangle every pixel of which `blitBitmap` would overwrite with
+	an opaque color given the same arguments, so that whatever was drawn
+	there before does not matter. It may be smaller than necessary and is
+	empty for anything that is not opaque all over or is rotated.
+	*/
+	public static Rectangle blitCover(Bitmap inbmp, double x, double y,
+		double rot, double sclx, double scly)
+	{
+		Rectangle none = new Rectangle();
+		if (rot != 0 || Double.isInfinite(x) || Double.isInfinite(y) ||
+			Double.isNaN(x) || Double.isNaN(y))
+			return none;
+
+		int left, top, width, height;
+		if (sclx == 1 && scly == 1)
+		{
+			// Exactly the pixels blitPos copies
+			left = (int)Math.floor(x - inbmp.getWidth() * 0.5f);
+			top = (int)Math.floor(y - inbmp.getHeight() * 0.5f);
+			width = inbmp.getWidth();
+			height = inbmp.getHeight();
+		}
+
+		else if (sclx != 1 && scly != 1)
+		{
+			int fwidth = (int)(inbmp.getWidth() * sclx);
+			int fheight = (int)(inbmp.getHeight() * scly);
+			if (fwidth <= 0 || fheight <= 0) return none;
+
+			// blitScl truncates every coordinate on its own, which hits every
+			// column from the first to the last one on the canvas
+			double minx = x - fwidth * 0.5f;
+			double miny = y - fheight * 0.5f;
+			left = (int)Math.floor(minx);
+			top = (int)Math.floor(miny);
+			width = (int)Math.floor(minx + fwidth - 1) - left + 1;
+			height = (int)Math.floor(miny + fheight - 1) - top + 1;
+		}
 
 		else
-			blitRotScl(inbmp, x, y, rot, sclx, scly);
+			return none;
+
+		if (width <= 0 || height <= 0 ||
+			inbmp.getOpacity().getKind() != Opacity.OPAQUE)
+			return none;
+		return new Rectangle(left, top, width, height);
+	}
+
+	/**
+	Returns which parts of this bitmap are opaque or transparent, working it
+	out first if it has not been yet or the bitmap was drawn on since. Code
+	that changes the pixel array directly must call `setPixels` afterwards.
+	*/
+	public Opacity getOpacity()
+	{
+		Opacity result = opacity;
+		if (result == null)
+		{
+			result = Opacity.of(this);
+			opacity = result;
+		}
+		return result;
+	}
+
+	/**
+	Multiplies the red, green and blue of every pixel by its alpha once, so
+	that drawing this bitmap over and over composites with the cheaper
+	`Pixel.overColor`. Does nothing if the pixels are premultiplied already.
+	*/
+	public void premultiply()
+	{
+		if (premultiplied) return;
+		if (offHeap != null)
+		{
+			for (int i = 0; i < getSize(); i++)
+			{
+				offHeap.put(i, Pixel.premultiply(offHeap.get(i)));
+			}
+			premultiplied = true;
+			return;
+		}
+
+		int[] pixels = getPixels();
+		for (int i = 0; i < getSize(); i++)
+		{
+			pixels[i] = Pixel.premultiply(pixels[i]);
+		}
+		setPixels(pixels);
+		premultiplied = true;
+	}
+
+	/**
+	Undoes `premultiply`, as far as `Pixel.unpremultiply` can. Does nothing if
+	the pixels are straight already.
+	*/
+	public void unpremultiply()
+	{
+		if (!premultiplied) return;
+		for (int i = 0; i < getSize(); i++)
+		{
+			putColor(i, Pixel.unpremultiply(colorAt(i)));
+		}
+		opacity = null;
+		premultiplied = false;
+	}
+
+	/**
+	Getter.
+	*/
+	public boolean isPremultiplied()
+	{
+		return premultiplied;
+	}
+
+	/**
+	Setter. Only changes how the pixels are taken, not the pixels themselves,
+	which is all a bitmap that is transparent all over needs; anything else
+	should be converted with `premultiply`.
+	*/
+	public void setPremultiplied(boolean premultiplied)
+	{
+		this.premultiplied = premultiplied;
 	}
 
 	/**
@@ -336,18 +937,30 @@ class Bitmap
 	}
 
 	/**
-	Getter.
+	Getter. Fails for a bitmap that keeps its pixels off the heap.
 	*/
 	public int[] getPixels()
 	{
+		if (offHeap != null)
+			throw new IllegalStateException("The pixels are off the heap");
 		return pixels;
 	}
 
 	/**
-	Setter.
+	Setter. A bitmap that kept its pixels off the heap uses these instead.
 	*/
 	public void setPixels(int[] pixels)
 	{
 		this.pixels = pixels;
+		offHeap = null;
+		opacity = null;
+	}
+
+	/**
+	Whether the pixels are kept off the heap rather than in `getPixels`.
+	*/
+	public boolean isOffHeap()
+	{
+		return offHeap != null;
 	}
 }
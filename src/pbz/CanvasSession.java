@@ -0,0 +1,216 @@
+package pbz;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+Server side state of one `RenderSession`: the canvas of the last frame and the
+instructions it was drawn from, one per slot. A new frame only says which
+slots changed, and only the parts of the canvas those slots cover now or
+covered before are drawn again.
+
+The pixels of the canvas count against the limit for all sessions of the
+server (see `Admission`) until the session ends.
+*/
+class CanvasSession
+{
+	/**
+	More dirty rectangles than this are merged into their bounding box, as
+	sending lots of small ones stops paying off.
+	*/
+	private static final int MAX_DIRTY = 16;
+
+	private Image canvas;
+	private final List<DrawInstruction> slots = new ArrayList<>();
+	private long held;
+	private boolean ended;
+	private CompletableFuture<Void> lastFrame =
+		CompletableFuture.completedFuture(null);
+
+	/**
+	Applies a frame and returns the rectangles of the canvas it changes. The
+	slots from `total` on are dropped and slot `changed[i]` becomes
+	`changes.get(i)`. Starting over, or a change of canvas size, throws away
+	everything and makes the whole canvas dirty. Fails if a new canvas would
+	take the sessions of the server over their limit.
+	*/
+	public List<Rectangle> update(int width, int height, boolean reset,
+		int total, int[] changed, List<DrawInstruction> changes)
+		throws RenderException
+	{
+		if (ended) throw new IllegalStateException("Session has ended");
+		if (total < 0)
+			throw new IllegalArgumentException("Negative slot count: " + total);
+		for (int slot : changed)
+		{
+			if (slot < 0 || slot >= total)
+				throw new IllegalArgumentException("No such slot: " + slot);
+		}
+
+		List<Rectangle> dirty = new ArrayList<>();
+		if (reset || canvas == null || canvas.getWidth() != width ||
+			canvas.getHeight() != height)
+		{
+			long pixels = (long)width * height;
+			Admission.holdSession(pixels - held);
+			held = pixels;
+			canvas = new Image(width, height);
+			canvas.setPremultiplied(RenderSiren.PREMULTIPLIED);
+			slots.clear();
+			dirty.add(new Rectangle(0, 0, width, height));
+		}
+
+		// Whatever removed and replaced instructions covered
+		for (int i = total; i < slots.size(); i++)
+		{
+			dirty.add(slots.get(i).getBounds());
+		}
+		while (slots.size() > total)
+		{
+			slots.remove(slots.size() - 1);
+		}
+		while (slots.size() < total)
+		{
+			slots.add(null);
+		}
+
+		for (int i = 0; i < changed.length; i++)
+		{
+			int slot = changed[i];
+			if (slots.get(slot) != null) dirty.add(slots.get(slot).getBounds());
+			slots.set(slot, changes.get(i));
+			dirty.add(changes.get(i).getBounds());
+		}
+
+		if (slots.contains(null))
+			throw new IllegalArgumentException("Slot " + slots.indexOf(null) +
+				" has never been set");
+
+		return merge(dirty);
+	}
+
+	/**
+	Puts a frame at the end of the queue of this session, given a future the
+	frame completes once it is answered. Returns the future of the frame
+	before it, which the frame waits for so that frames are applied in the
+	order they arrive. Only called by the thread reading the connection.
+	*/
+	CompletableFuture<Void> queue(CompletableFuture<Void> answered)
+	{
+		CompletableFuture<Void> previous = lastFrame;
+		lastFrame = answered;
+		return previous;
+	}
+
+	/**
+	Returns a future that is done once every frame queued so far is answered.
+	*/
+	CompletableFuture<Void> lastFrame()
+	{
+		return lastFrame;
+	}
+
+	/**
+	Lets go of the canvas, which no longer counts against the limit for
+	sessions. The session cannot be used any more afterwards.
+	*/
+	public void end()
+	{
+		Admission.releaseSession(held);
+		held = 0;
+		canvas = null;
+		slots.clear();
+		ended = true;
+	}
+
+	/**
+	Clears the rectangles and draws every slot into them again.
+	*/
+	public void redraw(List<Rectangle> dirty)
+	{
+		for (Rectangle area : dirty)
+		{
+			for (int y = area.y; y < area.y + area.height; y++)
+			{
+				int row = y * canvas.getWidth();
+				Arrays.fill(canvas.getPixels(), row + area.x,
+					row + area.x + area.width, 0);
+			}
+			RenderSiren.draw(canvas, slots, area);
+		}
+	}
+
+	/**
+	Returns a copy of part of the canvas.
+	*/
+	public Image copy(Rectangle area)
+	{
+		Image part = PixelPool.shared.borrow(area.width, area.height, false);
+		part.setPremultiplied(canvas.isPremultiplied());
+		for (int y = 0; y < area.height; y++)
+		{
+			System.arraycopy(canvas.getPixels(),
+				area.x + (area.y + y) * canvas.getWidth(), part.getPixels(),
+				y * area.width, area.width);
+		}
+		return part;
+	}
+
+	/**
+	Clips the rectangles to the canvas and merges the ones that touch.
+	*/
+	private List<Rectangle> merge(List<Rectangle> dirty)
+	{
+		Rectangle bounds = new Rectangle(0, 0, canvas.getWidth(),
+			canvas.getHeight());
+		List<Rectangle> merged = new ArrayList<>();
+		for (Rectangle area : dirty)
+		{
+			Rectangle clipped = area.intersection(bounds);
+			if (clipped.isEmpty()) continue;
+
+			// Swallow everything this touches, which may make it touch more
+			boolean grown = true;
+			while (grown)
+			{
+				grown = false;
+				for (int i = 0; i < merged.size(); i++)
+				{
+					Rectangle other = merged.get(i);
+					if (touches(clipped, other))
+					{
+						clipped = clipped.union(other);
+						merged.remove(i);
+						grown = true;
+						break;
+					}
+				}
+			}
+			merged.add(clipped);
+		}
+
+		if (merged.size() > MAX_DIRTY)
+		{
+			Rectangle all = merged.get(0);
+			for (Rectangle area : merged)
+			{
+				all = all.union(area);
+			}
+			merged.clear();
+			merged.add(all);
+		}
+		return merged;
+	}
+
+	/**
+	Whether the rectangles overlap or share an edge.
+	*/
+	private static boolean touches(Rectangle a, Rectangle b)
+	{
+		return a.x <= b.x + b.width && b.x <= a.x + a.width &&
+			a.y <= b.y + b.height && b.y <= a.y + a.height;
+	}
+}
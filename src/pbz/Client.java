@@ -1,9 +1,6 @@
 package pbz;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 
 /**
 Simple proof of concept client to connect to the `RenderSiren` server and
@@ -38,29 +35,12 @@ public class Client
         set.addInstruction(new DrawInstruction(protodip, 256, 256, 0.45f, 1, 1));
         set.addInstruction(new DrawInstruction(azimuth, 512, 256, 0, 2, 2));
 
-        // Connect to the RenderSiren server
-        Socket socket = new Socket("127.0.0.1", 8011);
-
-        // Having a smaller send/recieve buffer size increased performance
-        socket.setReceiveBufferSize(512);
-        socket.setSendBufferSize(512);
-
-        // In/Out streams
-        DataInputStream in = new DataInputStream(socket.getInputStream());
-        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-
-        // Send the InstructionSet over the wire
-        set.write(out);
-
-        // Get the resulting image from the server
+        // Have the RenderSiren server render it. Images it has seen before
+        // are not uploaded again.
         System.out.println("Retrieving results from the server...");
-        Image result = Image.read(in);
+        Image result = new RenderClient("127.0.0.1", 8011).render(set);
         System.out.println("Got em!");
 
-        // Close the streams
-        out.close();
-        in.close();
-
         // Show the image in a JFrame
         Display display = new Display(set.getCanvasWidth(), set.getCanvasHeight()) {
             @Override
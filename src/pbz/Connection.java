@@ -0,0 +1,1032 @@
+package pbz;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+Serves one client connection for the blocking engine of the `RenderSiren`
+server. Works out which version of the protocol the client speaks from the
+first integer it sends and answers its requests accordingly.
+*/
+class Connection
+{
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Metrics.TimedOutputStream socketOut;
+    private PixelCodec codec;
+    private int version;
+
+    /**
+    The `CanvasSession`s of this connection by id. Frames of different
+    sessions are drawn in parallel, those of one session one after another
+    in the order they arrive. There are at most
+    `RenderSiren.MAX_SESSIONS`, and they all end with the connection.
+    */
+    private final Map<Integer, CanvasSession> sessions =
+        new ConcurrentHashMap<>();
+
+    /**
+    Create the data streams. Images are written in large chunks, so the socket
+    buffers are left for the OS to size. Every flush ends a message the client
+    waits for, so there is no point in holding back the end of it. Bytes
+    both ways and the time spent writing to the socket go into `Metrics`.
+    */
+    public Connection(Socket socket) throws IOException
+    {
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(
+            new Metrics.CountingInputStream(socket.getInputStream()),
+            RenderSiren.STREAM_BUFFER));
+        socketOut = new Metrics.TimedOutputStream(socket.getOutputStream());
+        out = new DataOutputStream(new BufferedOutputStream(socketOut,
+            RenderSiren.STREAM_BUFFER));
+    }
+
+    /**
+    Read and answer the request, or from version 5 of the protocol on every
+    request until the client closes the connection. The caller closes the
+    socket afterwards.
+    */
+    public void serve() throws IOException
+    {
+        // The original protocol starts with the canvas width, which can never
+        // be negative like the magic number is.
+        in.mark(4);
+        try
+        {
+            if (in.readInt() == Protocol.MAGIC)
+            {
+                handshake();
+                if (version >= 5) serveRequests();
+                else handleRequest();
+            }
+            else if (RenderSiren.STREAMING)
+            {
+                in.reset();
+                streamInstructions();
+            }
+            else
+            {
+                in.reset();
+                handleInstructions();
+            }
+        }
+        catch (RenderException e)
+        {
+            // Before version 5 there is no way to tell the client, so closing
+            // the connection is all the answer it gets
+            if (version < 5) Metrics.shared.rejected();
+            throw e;
+        }
+        finally
+        {
+            for (Integer id : sessions.keySet())
+            {
+                endSession(id);
+            }
+        }
+
+        out.flush();
+    }
+
+    /**
+    Takes a given TCP socket connection and then reads the desired instructions
+    sent from the client. Creates an `Image` with the dimensions specified from
+    the client and then renders each `Instruction` onto it in turn. Sends the
+    results back to the client when finished.
+    */
+    private void handleInstructions() throws IOException
+    {
+        // Read the instruction set from the socket, checking every size
+        // before anything is allocated for it
+        long start = System.nanoTime();
+        InstructionSet set = new InstructionSet(in.readInt(), in.readInt());
+        Admission.checkCanvas(set.getCanvasWidth(), set.getCanvasHeight());
+        int numInstructions = in.readInt();
+        Admission.checkCount(numInstructions, "instructions");
+
+        Admission.enter();
+        try
+        {
+            Admission admission = new Admission();
+            for (int i = 0; i < numInstructions; i++)
+            {
+                DrawInstruction inst = DrawInstruction.read(in,
+                    admission.pixelsLeft());
+                admission.charge(inst.getImage());
+                RenderSiren.ingest(inst.getImage());
+                set.addInstruction(inst);
+            }
+            Metrics.shared.stage(Metrics.READ, System.nanoTime() - start);
+            Metrics.shared.requestStarted();
+
+            try
+            {
+                Image result = RenderSiren.render(set);
+                PixelPool.shared.releaseImages(set);
+
+                // Send the client the results
+                writeImage(result);
+                PixelPool.shared.release(result);
+            }
+            finally
+            {
+                Metrics.shared.requestDone();
+            }
+        }
+        finally
+        {
+            Admission.leave();
+        }
+    }
+
+    /**
+    Same as `handleInstructions`, but draws each `DrawInstruction` as soon as
+    it has been read and then lets go of it. Only one uploaded image is held
+    at a time, and the canvas is mostly done by the time the last instruction
+    arrives.
+    */
+    private void streamInstructions() throws IOException
+    {
+        int width = in.readInt();
+        int height = in.readInt();
+        Admission.checkCanvas(width, height);
+        int numInstructions = in.readInt();
+        Admission.checkCount(numInstructions, "instructions");
+
+        Admission.enter();
+        Metrics.shared.requestStarted();
+        try
+        {
+            Admission admission = new Admission();
+            Image result = RenderSiren.canvas(width, height);
+            for (int i = 0; i < numInstructions; i++)
+            {
+                long start = System.nanoTime();
+                DrawInstruction inst = DrawInstruction.read(in,
+                    admission.pixelsLeft());
+                admission.charge(inst.getImage());
+                RenderSiren.ingest(inst.getImage());
+                Metrics.shared.stage(Metrics.READ, System.nanoTime() - start);
+
+                RenderSiren.draw(result, Collections.singletonList(inst));
+                PixelPool.shared.release(inst.getImage());
+            }
+
+            writeImage(result);
+            PixelPool.shared.release(result);
+        }
+        finally
+        {
+            Metrics.shared.requestDone();
+            Admission.leave();
+        }
+    }
+
+    /**
+    Reads the version the client would like to speak, and from version 3 on
+    the encodings it offers, and answers with the version and encoding that
+    will be used. The magic number has already been read.
+    */
+    private void handshake() throws IOException
+    {
+        version = Math.min(in.readInt(), Protocol.VERSION);
+        if (version < Protocol.MIN_VERSION)
+            throw new IOException("Unsupported protocol version: " + version);
+
+        int encoding = PixelCodec.RAW;
+        if (version >= 3)
+        {
+            int numOffered = in.readInt();
+            boolean picked = false;
+            for (int i = 0; i < numOffered; i++)
+            {
+                int offered = in.readInt();
+                if (!picked && RenderSiren.ENCODINGS.contains(offered))
+                {
+                    encoding = offered;
+                    picked = true;
+                }
+            }
+        }
+        codec = PixelCodec.forEncoding(encoding, RenderSiren.DEFLATE_LEVEL);
+
+        out.writeInt(Protocol.MAGIC);
+        out.writeInt(version);
+        if (version >= 3) out.writeInt(encoding);
+        out.flush();
+    }
+
+    /**
+    Reads a `REQUEST`, asks the client for the images that are not cached yet,
+    then renders and sends back the result, in bands if the client asked for
+    that.
+    */
+    private void handleRequest() throws IOException
+    {
+        expect(Protocol.REQUEST);
+        long start = System.nanoTime();
+        Request request = readRequest(0);
+        Metrics.shared.stage(Metrics.READ, System.nanoTime() - start);
+        if (request.rejection != null) throw request.rejection;
+
+        Admission.enter();
+        Metrics.shared.requestStarted();
+        try
+        {
+            sendNeed(request);
+            readUploads(request);
+            answer(request);
+        }
+        finally
+        {
+            Metrics.shared.requestDone();
+            Admission.leave();
+        }
+    }
+
+    /**
+    Serves one request after another for as long as the client keeps the
+    connection open. Requests and uploads are read here, but drawn and
+    answered on the `RenderSiren` pipeline threads, so results go out as soon
+    as they are done rather than in the order they were asked for. Once the
+    client is done, or the connection fails, waits for the answers still
+    being worked on.
+
+    A request the server does not take on (see `Admission`) is answered with
+    an `ERROR` straight away. One that cannot even be read safely is answered
+    the same way, but then the connection is closed.
+    */
+    private void serveRequests() throws IOException
+    {
+        Map<Integer, Request> uploading = new HashMap<>();
+        List<Future<?>> answering = new ArrayList<>();
+
+        try
+        {
+            while (true)
+            {
+                int type;
+                try
+                {
+                    type = in.readInt();
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                int id = in.readInt();
+                long start = System.nanoTime();
+                if (type == Protocol.REQUEST ||
+                    (type == Protocol.FRAME && version >= 6) ||
+                    (type == Protocol.BATCH && version >= 9))
+                {
+                    Request request;
+                    try
+                    {
+                        if (type == Protocol.REQUEST)
+                            request = readRequest(id);
+                        else if (type == Protocol.FRAME)
+                            request = readFrame(id);
+                        else
+                            request = readBatch(id);
+                    }
+                    catch (RenderException e)
+                    {
+                        reject(id, e);
+                        throw e;
+                    }
+                    Metrics.shared.stage(Metrics.READ,
+                        System.nanoTime() - start);
+                    if (uploading.containsKey(id))
+                        throw new IOException("Request " + id +
+                            " sent twice");
+
+                    if (!admit(request)) continue;
+
+                    // Waiting for uploads until the NEED is out, so that the
+                    // request is let go of below if sending it fails
+                    uploading.put(id, request);
+                    sendNeed(request);
+                    if (request.missing.isEmpty())
+                    {
+                        uploading.remove(id);
+                        answering.add(answerLater(request));
+                    }
+                }
+                else if (type == Protocol.UPLOAD)
+                {
+                    Request request = uploading.get(id);
+                    if (request == null)
+                        throw new IOException("Request " + id +
+                            " is not waiting for images");
+
+                    try
+                    {
+                        readUploads(request);
+                    }
+                    catch (RenderException e)
+                    {
+                        reject(id, e);
+                        throw e;
+                    }
+                    uploading.remove(id);
+                    Metrics.shared.stage(Metrics.READ,
+                        System.nanoTime() - start);
+                    answering.add(answerLater(request));
+                }
+                else if (type == Protocol.END && version >= 6)
+                {
+                    endSession(id);
+                }
+                else
+                {
+                    throw new IOException("Unexpected message " + type);
+                }
+
+                answering.removeIf(Future::isDone);
+            }
+        }
+        finally
+        {
+            // Requests whose uploads never arrived will not be answered, but
+            // the frames queued behind them still are
+            for (Request request : uploading.values())
+            {
+                Admission.leave();
+                if (request.answered != null) request.answered.complete(null);
+            }
+
+            // Sessions end and the socket is closed once this returns, even
+            // if reading failed, so whatever is being answered finishes first
+            awaitAnswers(answering);
+        }
+    }
+
+    /**
+    Waits for the given answers to be sent.
+    */
+    private static void awaitAnswers(List<Future<?>> answering)
+        throws IOException
+    {
+        for (Future<?> answer : answering)
+        {
+            try
+            {
+                answer.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            catch (ExecutionException e)
+            {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+    Reads the rest of a `REQUEST`.
+    */
+    private Request readRequest(int id) throws IOException
+    {
+        Request request = new Request(id,
+            new InstructionSet(in.readInt(), in.readInt()));
+        readInstructions(request, false);
+
+        request.bandRows = version >= 4 ? in.readInt() : 0;
+        if (request.bandRows < 0 && request.rejection == null)
+            request.rejection = new RenderException(Protocol.INVALID,
+                "Negative band height: " + request.bandRows);
+
+        return request;
+    }
+
+    /**
+    Reads the rest of a `FRAME`.
+    */
+    private Request readFrame(int id) throws IOException
+    {
+        int session = in.readInt();
+        boolean reset = in.readBoolean();
+        Request request = new Request(id,
+            new InstructionSet(in.readInt(), in.readInt()));
+        request.session = session;
+        request.reset = reset;
+        request.slotCount = in.readInt();
+        Admission.checkCount(request.slotCount, "slots");
+        readInstructions(request, true);
+        return request;
+    }
+
+    /**
+    Reads the rest of a `BATCH`: one request holding the image table, with a
+    request per canvas that shares it. The batch is left with the rejection
+    of the first canvas the server will not draw, or one for all of them
+    together if they have too many pixels between them.
+    */
+    private Request readBatch(int id) throws IOException
+    {
+        Request batch = new Request(id, null);
+        readTable(batch);
+
+        int numCanvases = in.readInt();
+        Admission.checkCount(numCanvases, "canvases");
+        batch.canvases = new ArrayList<>(numCanvases);
+        long pixels = 0;
+        int numInstructions = 0;
+        for (int i = 0; i < numCanvases; i++)
+        {
+            Request canvas = new Request(id,
+                new InstructionSet(in.readInt(), in.readInt()));
+            canvas.images = batch.images;
+            checkCanvas(canvas);
+            readDraws(canvas, false);
+            batch.canvases.add(canvas);
+
+            if (batch.rejection == null) batch.rejection = canvas.rejection;
+            pixels += (long)canvas.set.getCanvasWidth() *
+                canvas.set.getCanvasHeight();
+            numInstructions += canvas.imageIndices.length;
+            Admission.checkCount(numInstructions, "instructions");
+        }
+
+        if (batch.rejection == null)
+        {
+            try
+            {
+                Admission.checkBatch(pixels);
+            }
+            catch (RenderException e)
+            {
+                batch.rejection = e;
+            }
+        }
+        return batch;
+    }
+
+    /**
+    Reads the image table of a request and the instructions that follow it,
+    each starting with the slot it goes into if they are slotted.
+    */
+    private void readInstructions(Request request, boolean slotted)
+        throws IOException
+    {
+        checkCanvas(request);
+        readTable(request);
+        readDraws(request, slotted);
+    }
+
+    /**
+    Leaves a request for a canvas the server will not draw with a rejection,
+    so the rest of it is read all the same.
+    */
+    private static void checkCanvas(Request request)
+    {
+        try
+        {
+            Admission.checkCanvas(request.set.getCanvasWidth(),
+                request.set.getCanvasHeight());
+        }
+        catch (RenderException e)
+        {
+            request.rejection = e;
+        }
+    }
+
+    /**
+    Reads the image table of a request, filling it from the cache where
+    possible. A request for an asset the server does not have is left with a
+    rejection, and so is one whose named assets come to more pixels than it
+    may send. One that does not fit the limits of the server, or does not
+    make sense, fails right away.
+    */
+    private void readTable(Request request) throws IOException
+    {
+        int numImages = in.readInt();
+        Admission.checkCount(numImages, "images");
+        request.hashes = new ContentHash[numImages];
+        request.images = new Image[numImages];
+        for (int i = 0; i < numImages; i++)
+        {
+            int kind = version >= 7 ? in.readByte() : Protocol.BY_HASH;
+            if (kind == Protocol.BY_NAME)
+            {
+                String name = in.readUTF();
+                Image image = RenderSiren.assets.get(name);
+                if (image == null)
+                {
+                    if (request.rejection == null)
+                        request.rejection = new RenderException(
+                            Protocol.UNKNOWN_ASSET, "No such asset: " + name);
+                }
+                else if (image.getSize() > request.admission.pixelsLeft())
+                {
+                    if (request.rejection == null)
+                        request.rejection = new RenderException(
+                            Protocol.TOO_LARGE, "Asset " + name +
+                            " is over the limit of the request");
+                }
+                else
+                {
+                    request.admission.charge(image);
+                    request.images[i] = image;
+                }
+                continue;
+            }
+            if (kind != Protocol.BY_HASH)
+                throw new RenderException(Protocol.INVALID,
+                    "Unknown image kind: " + kind);
+
+            request.hashes[i] = ContentHash.read(in);
+            request.images[i] = RenderSiren.cache.get(request.hashes[i]);
+            if (request.images[i] == null)
+                request.images[i] = RenderSiren.assets.get(request.hashes[i]);
+            if (request.images[i] == null) request.missing.add(i);
+        }
+    }
+
+    /**
+    Reads the instructions of a request, whose image table has been read
+    already.
+    */
+    private void readDraws(Request request, boolean slotted)
+        throws IOException
+    {
+        int numImages = request.images.length;
+        int numInstructions = in.readInt();
+        Admission.checkCount(numInstructions, "instructions");
+        request.imageIndices = new int[numInstructions];
+        if (slotted) request.slots = new int[numInstructions];
+        for (int i = 0; i < numInstructions; i++)
+        {
+            if (slotted) request.slots[i] = in.readInt();
+
+            int index = in.readInt();
+            if (index < 0 || index >= numImages)
+                throw new RenderException(Protocol.INVALID,
+                    "No such image: " + index);
+
+            request.imageIndices[i] = index;
+            request.set.addInstruction(new DrawInstruction((Image)null,
+                in.readFloat(), in.readFloat(), in.readFloat(),
+                in.readFloat(), in.readFloat()));
+        }
+    }
+
+    /**
+    Takes a request on unless it was rejected while it was read or the
+    server is too busy for it. A request that is not taken on is answered
+    with a `NEED` for nothing, so its images are never sent, and an `ERROR`.
+    Returns whether the request was taken on.
+    */
+    private boolean admit(Request request) throws IOException
+    {
+        if (request.rejection == null && request.slots != null &&
+            !sessions.containsKey(request.session) &&
+            sessions.size() >= RenderSiren.MAX_SESSIONS)
+            request.rejection = new RenderException(Protocol.TOO_LARGE,
+                "Over " + RenderSiren.MAX_SESSIONS + " sessions");
+
+        if (request.rejection == null)
+        {
+            try
+            {
+                Admission.enter();
+                if (request.slots != null)
+                {
+                    request.canvasSession = sessions.computeIfAbsent(
+                        request.session, id -> new CanvasSession());
+                    request.answered = new CompletableFuture<>();
+                    request.previous =
+                        request.canvasSession.queue(request.answered);
+                }
+                return true;
+            }
+            catch (RenderException e)
+            {
+                request.rejection = e;
+            }
+        }
+
+        if (request.slots != null) endSession(request.session);
+        request.missing.clear();
+        sendNeed(request);
+        reject(request.id, request.rejection);
+        return false;
+    }
+
+    /**
+    Forgets a session, if there is one with the given id, and lets go of its
+    canvas once the frames already taken on for it are answered.
+    */
+    private void endSession(int id)
+    {
+        CanvasSession session = sessions.remove(id);
+        if (session == null) return;
+        session.lastFrame().thenRun(() -> {
+            synchronized (session)
+            {
+                session.end();
+            }
+        });
+    }
+
+    /**
+    Answers a request that was not taken on with an `ERROR`, if the protocol
+    has one.
+    */
+    private void reject(int id, RenderException e) throws IOException
+    {
+        Metrics.shared.rejected();
+        if (version >= 5) sendError(id, e.getCode(), e.getMessage());
+    }
+
+    /**
+    Answers a request with an `ERROR`, which only carries the code from
+    version 8 on.
+    */
+    private void sendError(int id, int code, String message)
+        throws IOException
+    {
+        synchronized (out)
+        {
+            begin(Protocol.ERROR, id);
+            if (version >= 8) out.writeInt(code);
+            out.writeUTF(message);
+            out.flush();
+        }
+    }
+
+    /**
+    Tells the client which images of the request it has to upload.
+    */
+    private void sendNeed(Request request) throws IOException
+    {
+        synchronized (out)
+        {
+            begin(Protocol.NEED, request.id);
+            out.writeInt(request.missing.size());
+            for (int index : request.missing)
+            {
+                out.writeInt(index);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+    Reads the images the client was asked for. When streaming, instructions
+    are drawn as soon as the images for them and every instruction before
+    them are there, so cached images are drawn while uploads are still coming
+    in. Nothing is drawn ahead once there are no more uploads to wait for, so
+    that bands are not held up by drawing the whole canvas first.
+    */
+    private void readUploads(Request request) throws IOException
+    {
+        for (int index : request.missing)
+        {
+            if (RenderSiren.STREAMING && request.slots == null &&
+                request.canvases == null)
+                drawReady(request);
+
+            Image image = codec.read(in, request.admission.pixelsLeft());
+            request.admission.charge(image);
+            if (!ContentHash.of(image).equals(request.hashes[index]))
+                throw new RenderException(Protocol.INVALID, "Image " + index +
+                    " does not match " + request.hashes[index]);
+            RenderSiren.ingest(image);
+
+            RenderSiren.cache.put(request.hashes[index], image);
+            request.images[index] = image;
+        }
+    }
+
+    /**
+    Has the request answered on a pipeline thread. A request that fails to
+    render, even for running out of memory, is answered with an `ERROR`
+    rather than taking the whole connection down or never being answered.
+    Either way the request is done with as far as `Admission` is concerned
+    afterwards. A frame waits for the frame of its session before it.
+    */
+    private Future<?> answerLater(Request request)
+    {
+        Metrics.shared.requestStarted();
+        Runnable task = () -> {
+            try
+            {
+                try
+                {
+                    answer(request);
+                }
+                catch (RenderException e)
+                {
+                    reject(request.id, e);
+                }
+                catch (IOException e)
+                {
+                    throw e;
+                }
+                catch (Throwable e)
+                {
+                    e.printStackTrace();
+                    sendError(request.id, Protocol.FAILED, String.valueOf(e));
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                Metrics.shared.requestDone();
+                Admission.leave();
+                if (request.answered != null) request.answered.complete(null);
+            }
+        };
+        if (request.previous == null)
+            return RenderSiren.pipeline.submit(task);
+        return request.previous.thenRunAsync(task, RenderSiren.pipeline);
+    }
+
+    /**
+    Draws whatever has not been drawn yet and sends the result.
+    */
+    private void answer(Request request) throws IOException
+    {
+        if (request.slots != null)
+        {
+            answerFrame(request);
+            return;
+        }
+        if (request.canvases != null)
+        {
+            answerBatch(request);
+            return;
+        }
+
+        if (request.bandRows == 0)
+        {
+            drawReady(request);
+            synchronized (out)
+            {
+                begin(Protocol.RESULT, request.id);
+                writeImage(request.canvas());
+                out.flush();
+            }
+            PixelPool.shared.release(request.canvas());
+            return;
+        }
+
+        List<DrawInstruction> instructions = request.set.getInstructions();
+        for (int i = request.drawn; i < instructions.size(); i++)
+        {
+            instructions.get(i).setImage(
+                request.images[request.imageIndices[i]]);
+        }
+        sendBands(request, instructions.subList(request.drawn,
+            instructions.size()));
+        PixelPool.shared.release(request.canvas());
+    }
+
+    /**
+    Applies a frame to its session and sends the parts of the canvas that
+    changed. A frame that fails, or would take sessions over their limit of
+    pixels, takes its session with it, so the client has to start over.
+    */
+    private void answerFrame(Request request) throws IOException
+    {
+        CanvasSession session = request.canvasSession;
+        synchronized (session)
+        {
+            List<DrawInstruction> changes = request.set.getInstructions();
+            for (int i = 0; i < changes.size(); i++)
+            {
+                changes.get(i).setImage(
+                    request.images[request.imageIndices[i]]);
+            }
+
+            List<Rectangle> dirty;
+            try
+            {
+                dirty = session.update(request.set.getCanvasWidth(),
+                    request.set.getCanvasHeight(), request.reset,
+                    request.slotCount, request.slots, changes);
+                session.redraw(dirty);
+            }
+            catch (RuntimeException | RenderException e)
+            {
+                if (sessions.remove(request.session, session)) session.end();
+                throw e;
+            }
+
+            synchronized (out)
+            {
+                begin(Protocol.DIRTY, request.id);
+                out.writeInt(dirty.size());
+                for (Rectangle area : dirty)
+                {
+                    out.writeInt(area.x);
+                    out.writeInt(area.y);
+                    Image part = session.copy(area);
+                    writeImage(part);
+                    PixelPool.shared.release(part);
+                }
+                out.flush();
+            }
+        }
+    }
+
+    /**
+    Draws every canvas of a batch and sends them all in one `RESULTS`.
+    */
+    private void answerBatch(Request batch) throws IOException
+    {
+        List<Image> results = new ArrayList<>(batch.canvases.size());
+        List<List<DrawInstruction>> draws =
+            new ArrayList<>(batch.canvases.size());
+        for (Request request : batch.canvases)
+        {
+            List<DrawInstruction> instructions = request.set.getInstructions();
+            for (int i = 0; i < instructions.size(); i++)
+            {
+                instructions.get(i).setImage(
+                    batch.images[request.imageIndices[i]]);
+            }
+            results.add(request.canvas());
+            draws.add(instructions);
+        }
+
+        RenderSiren.drawAll(results, draws);
+        synchronized (out)
+        {
+            begin(Protocol.RESULTS, batch.id);
+            out.writeInt(results.size());
+            for (Image result : results)
+            {
+                writeImage(result);
+            }
+            out.flush();
+        }
+        for (Image result : results)
+        {
+            PixelPool.shared.release(result);
+        }
+    }
+
+    /**
+    Draws the instructions onto the canvas one band of rows after the other
+    and sends each band off as soon as it is done, so the client can show the
+    top of the canvas while the bottom is still being drawn.
+    */
+    private void sendBands(Request request, List<DrawInstruction> instructions)
+        throws IOException
+    {
+        Image canvas = request.canvas();
+        int width = canvas.getWidth();
+        for (int y = 0; y < canvas.getHeight(); y += request.bandRows)
+        {
+            int rows = Math.min(request.bandRows, canvas.getHeight() - y);
+            RenderSiren.draw(canvas, instructions,
+                new Rectangle(0, y, width, rows));
+
+            Image band = PixelPool.shared.borrow(width, rows, false);
+            band.setPremultiplied(canvas.isPremultiplied());
+            System.arraycopy(canvas.getPixels(), y * width, band.getPixels(),
+                0, rows * width);
+
+            synchronized (out)
+            {
+                begin(Protocol.BAND, request.id);
+                out.writeInt(y);
+                writeImage(band);
+                out.flush();
+            }
+            PixelPool.shared.release(band);
+        }
+    }
+
+    /**
+    Gives the instructions that have not been drawn yet their images for as
+    long as those are known, and draws them.
+    */
+    private static void drawReady(Request request)
+    {
+        List<DrawInstruction> instructions = request.set.getInstructions();
+        int ready = request.drawn;
+        while (ready < instructions.size() &&
+            request.images[request.imageIndices[ready]] != null)
+        {
+            instructions.get(ready).setImage(
+                request.images[request.imageIndices[ready]]);
+            ready++;
+        }
+
+        if (ready > request.drawn)
+            RenderSiren.draw(request.canvas(),
+                instructions.subList(request.drawn, ready));
+        request.drawn = ready;
+    }
+
+    /**
+    Writes an image in the negotiated encoding, or raw for the original
+    protocol. Whatever part of that was spent waiting for the socket counts
+    as writing rather than encoding. Must hold `out` where that matters.
+    */
+    private void writeImage(Image image) throws IOException
+    {
+        long start = System.nanoTime();
+        long waited = socketOut.getNanos();
+        if (codec == null)
+            image.write(out);
+        else
+            codec.write(image, out);
+        Metrics.shared.stage(Metrics.ENCODE, System.nanoTime() - start -
+            (socketOut.getNanos() - waited));
+    }
+
+    /**
+    Starts a message to the client, which from version 5 on says which
+    request it belongs to.
+    */
+    private void begin(int type, int id) throws IOException
+    {
+        out.writeInt(type);
+        if (version >= 5) out.writeInt(id);
+    }
+
+    /**
+    Reads the type of the next message and fails unless it is the given one.
+    */
+    private void expect(int type) throws IOException
+    {
+        int actual = in.readInt();
+        if (actual != type)
+            throw new IOException("Expected message " + type + ", got " +
+                actual);
+    }
+
+    /**
+    Everything known about one request while it is being served. Only used by
+    one thread at a time: the connection's while reading it, a pipeline
+    thread while answering it.
+    */
+    private static class Request
+    {
+        final int id;
+        final InstructionSet set;
+        ContentHash[] hashes;
+        Image[] images;
+        int[] imageIndices;
+        final List<Integer> missing = new ArrayList<>();
+        final Admission admission = new Admission();
+        RenderException rejection;
+        int bandRows;
+        int drawn;
+        int session;
+        boolean reset;
+        int slotCount;
+        int[] slots;
+        CanvasSession canvasSession;
+        CompletableFuture<Void> previous;
+        CompletableFuture<Void> answered;
+        List<Request> canvases;
+        private Image canvas;
+
+        Request(int id, InstructionSet set)
+        {
+            this.id = id;
+            this.set = set;
+        }
+
+        /**
+        Returns the canvas, creating it the first time something is drawn.
+        */
+        Image canvas()
+        {
+            if (canvas == null)
+                canvas = RenderSiren.canvas(set.getCanvasWidth(),
+                    set.getCanvasHeight());
+            return canvas;
+        }
+    }
+}
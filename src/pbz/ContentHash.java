@@ -0,0 +1,125 @@
+package pbz;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+SHA-256 digest of the dimensions and pixels of an `Image`, used to refer to an
+image by its contents rather than sending all of its pixels.
+*/
+final class ContentHash
+{
+	static final int LENGTH = 32;
+
+	private final byte[] digest;
+
+	private ContentHash(byte[] digest)
+	{
+		this.digest = digest;
+	}
+
+	/**
+	Hash the given image. The pixels are fed to the digest as big endian
+	integers, the same bytes `Image.write` puts on the wire, so those of a
+	premultiplied image are converted back first.
+	*/
+	public static ContentHash of(Bitmap image)
+	{
+		MessageDigest sha;
+		try
+		{
+			sha = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+
+		byte[] chunk = new byte[Math.max(8,
+			Math.min(image.getSize(), Image.CHUNK_PIXELS) * 4)];
+		IntBuffer ints = ByteBuffer.wrap(chunk).order(ByteOrder.BIG_ENDIAN)
+			.asIntBuffer();
+
+		ints.put(image.getWidth()).put(image.getHeight());
+		sha.update(chunk, 0, 8);
+
+		for (int i = 0; i < image.getSize(); i += Image.CHUNK_PIXELS)
+		{
+			int count = Math.min(image.getSize() - i, Image.CHUNK_PIXELS);
+			ints.clear();
+			if (image.isPremultiplied())
+			{
+				for (int j = i; j < i + count; j++)
+				{
+					ints.put(Pixel.unpremultiply(image.getPixels()[j]));
+				}
+			}
+			else
+				ints.put(image.getPixels(), i, count);
+			sha.update(chunk, 0, count * 4);
+		}
+
+		return new ContentHash(sha.digest());
+	}
+
+	/**
+	Write the raw digest.
+	*/
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.write(digest);
+	}
+
+	/**
+	Read a raw digest.
+	*/
+	public static ContentHash read(DataInputStream in) throws IOException
+	{
+		byte[] digest = new byte[LENGTH];
+		in.readFully(digest);
+		return new ContentHash(digest);
+	}
+
+	/**
+	Wrap a raw digest read from somewhere else. The array is not copied.
+	*/
+	static ContentHash wrap(byte[] digest)
+	{
+		if (digest.length != LENGTH)
+			throw new IllegalArgumentException("Digest of " + digest.length +
+				" bytes");
+		return new ContentHash(digest);
+	}
+
+	@Override
+	public boolean equals(Object other)
+	{
+		return other instanceof ContentHash &&
+			Arrays.equals(digest, ((ContentHash)other).digest);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Arrays.hashCode(digest);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest)
+		{
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
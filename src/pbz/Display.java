@@ -2,17 +2,54 @@ package pbz;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
-Simple JPanel subclass that renders its `Bitmap` backbuffer after a brief pause
-to attempt to ensure that reading and writing to the buffer does not happen at
-the same time.
+Simple JPanel subclass that renders into a back buffer on its own thread and
+shows the last finished frame. Frames are handed over without locks: the
+rendering thread publishes a finished buffer with an atomic swap and carries
+on in another one, which starts out as a copy of the frame just finished, and
+painting takes the newest published frame whenever it gets to it. Neither side
+ever waits for the other, and no frame is shown half drawn.
+
+The loop aims for a target frame rate rather than sleeping a fixed time, and
+keeps track of how long rendering and presenting frames take. Without a
+screen (or when asked to) frames are presented into an off-screen image
+instead, so the whole pipeline can be measured on a server.
 */
 class Display extends JPanel
 {
+	/**
+	The back buffer. Only the rendering thread may touch it, and it is a
+	different `Image` after every frame.
+	*/
 	protected Image buffer;
 
+	// Newest finished frame nobody has presented yet, and a presented one
+	// that may be drawn over again
+	private final AtomicReference<Image> ready = new AtomicReference<>();
+	private final AtomicReference<Image> spare = new AtomicReference<>();
+
+	// Only touched by whoever presents
+	private Image front;
+	private BufferedImage offscreen;
+
+	private volatile int targetFps = 60;
+	private volatile boolean running;
+
+	// Each written by one thread only: the rendering one or the presenting one
+	private volatile long frames;
+	private volatile long dropped;
+	private volatile long lastRenderNanos;
+	private volatile long totalRenderNanos;
+	private volatile long presented;
+	private volatile long lastPresentNanos;
+	private volatile long totalPresentNanos;
+
 	/**
 	Create an Image that has the same dimensions as the top-level window.
 	*/
@@ -23,7 +60,7 @@ class Display extends JPanel
 
 	/**
 	Can be overridden to provide custom rendering without messing with the
-	timing loop.
+	timing loop. Draws into `buffer`, which holds the previous frame.
 	*/
 	public void render()
 	{
@@ -49,53 +86,226 @@ class Display extends JPanel
 	}
 
 	/**
-	Enter an infinite rendering loop that can only be killed by closing the
-	window. Renders a randomly colored Image onto the buffer. The buffer will
-	later get copied to the background of the JFrame.
+	Render frames until `stop` is called, at the target frame rate if the
+	renderer keeps up. Falling behind by more than a frame does not make the
+	following frames come faster to catch up.
 	*/
-	private void run()
+	private void run(boolean onScreen)
 	{
-		while (true)
+		running = true;
+		long next = System.nanoTime();
+		long report = next + TimeUnit.SECONDS.toNanos(1);
+		while (running)
 		{
-			render();
+			frame();
+			if (onScreen)
+				repaint();
+			else
+				presentOffscreen();
 
-			try
-			{
-				// Sleep the rendering thread so that the GUI has enough time
-				// to render the image before it is modified next.
-				Thread.sleep(60);
-			}
-			catch (Exception e)
+			int fps = targetFps;
+			long now = System.nanoTime();
+			if (!onScreen && now - report >= 0)
 			{
-				e.printStackTrace();
+				System.out.printf("%d frames, %.2f ms render, %.2f ms present," +
+					" %d dropped%n", frames, getMeanRenderNanos() / 1e6,
+					getMeanPresentNanos() / 1e6, dropped);
+				report = now + TimeUnit.SECONDS.toNanos(1);
 			}
+			if (fps <= 0) continue;
+
+			long period = TimeUnit.SECONDS.toNanos(1) / fps;
+			next += period;
+			if (next - now > 0)
+				LockSupport.parkNanos(next - now);
+			else if (now - next > period)
+				next = now;
+		}
+	}
+
+	/**
+	Renders one frame into the back buffer and publishes it, without waiting
+	for anything.
+	*/
+	void frame()
+	{
+		long start = System.nanoTime();
+		render();
+		long time = System.nanoTime() - start;
+
+		// If the last frame has not been presented yet it never will be, so
+		// its buffer can be drawn over straight away
+		Image finished = buffer;
+		Image next = ready.getAndSet(finished);
+		if (next != null)
+			dropped++;
+		else
+			next = spare.getAndSet(null);
+		if (next == null) next = new Image(finished.getWidth(),
+			finished.getHeight());
+
+		System.arraycopy(finished.getPixels(), 0, next.getPixels(), 0,
+			finished.getSize());
+		next.setPixels(next.getPixels());
+		buffer = next;
+
+		lastRenderNanos = time;
+		totalRenderNanos += time;
+		frames++;
+	}
+
+	/**
+	Draws the newest finished frame, taking it over from the rendering thread
+	if there is a new one.
+	*/
+	private void present(Graphics graphics)
+	{
+		long start = System.nanoTime();
+		Image fresh = ready.getAndSet(null);
+		if (fresh != null)
+		{
+			if (front != null) spare.set(front);
+			front = fresh;
+		}
+		if (front == null) return;
+
+		graphics.drawImage(front.asBufferedImage(), 0, 0, null);
 
-			// Ask Java to repaint the screen and do this all over again
-			repaint();
+		if (fresh != null)
+		{
+			long time = System.nanoTime() - start;
+			lastPresentNanos = time;
+			totalPresentNanos += time;
+			presented++;
 		}
 	}
 
+	/**
+	Presents the newest frame into an off-screen image the size of the
+	buffer, the way it would be onto the screen.
+	*/
+	void presentOffscreen()
+	{
+		if (offscreen == null)
+			offscreen = new BufferedImage(buffer.getWidth(),
+				buffer.getHeight(), BufferedImage.TYPE_INT_RGB);
+
+		Graphics2D graphics = offscreen.createGraphics();
+		present(graphics);
+		graphics.dispose();
+	}
+
 	/**
 	Inherited method to render the buffer onto the JFrame.
 	*/
 	protected void paintComponent(Graphics graphics)
 	{
-		Graphics2D gdd = (Graphics2D)graphics;
-		gdd.drawImage(buffer.asBufferedImage(), 0, 0, null);
+		present(graphics);
 	}
 
 	/**
 	Create a JFrame, add this Display to it and then start the render loop.
+	Without a screen, renders and presents off-screen instead and prints the
+	frame times every second.
 	*/
 	public void start()
 	{
+		if (GraphicsEnvironment.isHeadless())
+		{
+			run(false);
+			return;
+		}
+
 		JFrame frame = new JFrame();
 		frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
 		frame.setSize(new Dimension(buffer.getWidth(), buffer.getHeight()));
 		frame.setResizable(false);
 		frame.add(this);
 		frame.setVisible(true);
-		run();
+		run(true);
+	}
+
+	/**
+	Make the render loop return after the current frame.
+	*/
+	public void stop()
+	{
+		running = false;
+	}
+
+	/**
+	Getter.
+	*/
+	public int getTargetFps()
+	{
+		return targetFps;
+	}
+
+	/**
+	Setter. 0 or less renders frames as fast as possible.
+	*/
+	public void setTargetFps(int targetFps)
+	{
+		this.targetFps = targetFps;
+	}
+
+	/**
+	Returns the number of frames rendered.
+	*/
+	public long getFrames()
+	{
+		return frames;
+	}
+
+	/**
+	Returns the number of frames presented.
+	*/
+	public long getPresentedFrames()
+	{
+		return presented;
+	}
+
+	/**
+	Returns the number of frames that were replaced by the next one before
+	they could be presented.
+	*/
+	public long getDroppedFrames()
+	{
+		return dropped;
+	}
+
+	/**
+	Returns how long `render` took for the last frame.
+	*/
+	public long getLastRenderNanos()
+	{
+		return lastRenderNanos;
+	}
+
+	/**
+	Returns how long the last frame took to present.
+	*/
+	public long getLastPresentNanos()
+	{
+		return lastPresentNanos;
+	}
+
+	/**
+	Returns how long `render` took per frame on average.
+	*/
+	public long getMeanRenderNanos()
+	{
+		long count = frames;
+		return count == 0 ? 0 : totalRenderNanos / count;
+	}
+
+	/**
+	Returns how long presenting took per frame on average.
+	*/
+	public long getMeanPresentNanos()
+	{
+		long count = presented;
+		return count == 0 ? 0 : totalPresentNanos / count;
 	}
 
 	/**
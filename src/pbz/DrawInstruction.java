@@ -1,16 +1,20 @@
 package pbz;
 
+import java.awt.Rectangle;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
 Couples both an `Image` and the position, rotation, and scale it should have on
-the resulting image.
+the resulting image. Instead of an image, an instruction can name an asset
+the server keeps (see `AssetStore`), which only `RenderClient` can send.
 */
 public class DrawInstruction
 {
     private Image image;
+    private String asset;
     private float x;
     private float y;
     private float rot;
@@ -30,11 +34,24 @@ public class DrawInstruction
         this.setScly(scly);
     }
 
+    /**
+	Create a `DrawInstruction` that draws the asset with the given name.
+    */
+    public DrawInstruction(String asset, float x, float y, float rot, float sclx, float scly)
+    {
+        this((Image)null, x, y, rot, sclx, scly);
+        this.setAsset(asset);
+    }
+
     /**
 	Write the image and the drawing instructions to the socket (in this case).
     */
     public void write(DataOutputStream out) throws IOException
     {
+        if (getAsset() != null)
+            throw new IOException("Asset " + getAsset() +
+                " cannot be sent without its image");
+
         getImage().write(out);
         out.writeFloat(getX());
         out.writeFloat(getY());
@@ -48,9 +65,19 @@ public class DrawInstruction
 	network socket (in this case).
     */
     public static DrawInstruction read(DataInputStream in) throws IOException
+    {
+        return read(in, Long.MAX_VALUE);
+    }
+
+    /**
+	Same as `read`, but fails before allocating anything for an image of more
+	than `maxPixels` pixels.
+    */
+    static DrawInstruction read(DataInputStream in, long maxPixels)
+        throws IOException
     {
         DrawInstruction di = new DrawInstruction(
-                Image.read(in),
+                Image.read(in, maxPixels),
                 in.readFloat(),
                 in.readFloat(),
                 in.readFloat(),
@@ -60,6 +87,32 @@ public class DrawInstruction
         return di;
     }
 
+    /**
+	Create a `DrawInstruction` from a buffer holding the complete instruction.
+    */
+    public static DrawInstruction read(ByteBuffer buf)
+    {
+        DrawInstruction di = new DrawInstruction(
+                Image.read(buf),
+                buf.getFloat(),
+                buf.getFloat(),
+                buf.getFloat(),
+                buf.getFloat(),
+                buf.getFloat()
+        );
+        return di;
+    }
+
+    /**
+	Returns a rectangle on the canvas that contains every pixel this
+	instruction can draw.
+    */
+    public Rectangle getBounds()
+    {
+        return Bitmap.blitBounds(getImage(), getX(), getY(), getRot(),
+            getSclx(), getScly());
+    }
+
     /**
 	Getter.
     */
@@ -76,6 +129,22 @@ public class DrawInstruction
         this.image = image;
     }
 
+    /**
+	Getter.
+    */
+    public String getAsset()
+    {
+        return asset;
+    }
+
+    /**
+	Setter.
+    */
+    public void setAsset(String asset)
+    {
+        this.asset = asset;
+    }
+
     /**
 	Getter.
     */
@@ -2,19 +2,41 @@ package pbz;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 
 /**
 Subclass of `pbz.Bitmap` that provides saving and loading methods as well as
-the ability to read and write to a Data(In/Out)putStream. No attempt is made to
-handle the endianness of the platform as saving/loading/reading/writing is
-handled by the Java Standard Library for convenience purposes.
+the ability to read and write to a Data(In/Out)putStream. Pixels always go
+over the wire as big endian integers, the same as `DataOutputStream.writeInt`
+would produce, but are moved in chunks rather than one at a time. Pixels
+always leave an image straight, so a premultiplied one is converted back as
+it is written or saved.
 */
 class Image extends Bitmap
 {
+	/**
+	Number of pixels converted and transferred at once when reading or writing
+	a stream.
+	*/
+	static final int CHUNK_PIXELS = 16 * 1024;
+
 	/**
 	Constructor. Inherits from Bitmap, so initialize parent.
 	*/
@@ -24,21 +46,164 @@ class Image extends Bitmap
 	}
 
 	/**
-	Hidden constructor for easier creation of bitmaps from Java's built-in
-	BufferedImage class only within the confines of this Image class.
+	Create an Image that uses the given pixels rather than its own.
 	*/
-	private Image(BufferedImage image)
+	Image(int width, int height, int[] pixels)
 	{
-		super(image.getWidth(), image.getHeight());
+		super(width, height, pixels);
+	}
 
-		for (int y = 0; y < getHeight(); y++)
+	/**
+	The whole direct buffer of an image made by `allocateDirect`, size header
+	included, or null.
+	*/
+	private ByteBuffer direct;
+
+	/**
+	Create an Image that keeps its pixels in the given direct buffer, which
+	holds the layout of `write(ByteBuffer)`.
+	*/
+	private Image(int width, int height, ByteBuffer direct)
+	{
+		super(width, height, ((ByteBuffer)direct.position(8)).slice()
+			.asIntBuffer());
+		this.direct = direct;
+	}
+
+	/**
+	Returns a transparent Image whose pixels are kept off the heap, in a
+	direct buffer laid out the way `write(ByteBuffer)` writes them, so that
+	once drawn it can be sent with `getDirectBuffer` and no copy at all.
+	*/
+	static Image allocateDirect(int width, int height)
+	{
+		long bytes = 8 + (long)width * height * 4;
+		if (width < 0 || height < 0 || bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Can't keep a " + width + "x" +
+				height + " image in one buffer");
+
+		// Direct buffers come zeroed, which is transparent already
+		ByteBuffer direct = ByteBuffer.allocateDirect((int)bytes);
+		direct.putInt(width).putInt(height);
+		return new Image(width, height, direct);
+	}
+
+	/**
+	Returns the width, height and pixels of an image made by `allocateDirect`
+	as they are, in the layout of `write(ByteBuffer)`, ready to be written.
+	The pixels have to be straight for that, see `unpremultiply`.
+	*/
+	ByteBuffer getDirectBuffer()
+	{
+		if (direct == null || !isOffHeap())
+			throw new IllegalStateException("Not a direct image");
+		ByteBuffer whole = direct.duplicate();
+		whole.clear();
+		return whole;
+	}
+
+	/**
+	Returns an Image with the contents of the BufferedImage. A `TYPE_INT_ARGB`
+	image that is not a part of a bigger one shares its pixels with the
+	result, so drawing on one changes the other. Anything else is converted
+	in bulk, with fast paths for the types `ImageIO` usually loads.
+	*/
+	public static Image of(BufferedImage image)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		WritableRaster raster = image.getRaster();
+		int[] ints = packedInts(raster, width);
+		byte[] bytes = interleavedBytes(raster, width);
+
+		if (image.getType() == BufferedImage.TYPE_INT_ARGB && ints != null)
+			return new Image(width, height, ints);
+
+		Image result = new Image(width, height);
+		int[] pixels = result.getPixels();
+		if (image.getType() == BufferedImage.TYPE_INT_RGB && ints != null)
 		{
-			for (int x = 0; x < getWidth(); x++)
+			for (int i = 0; i < pixels.length; i++)
 			{
-				int index = x + y * getWidth();
-				getPixels()[index] = image.getRGB(x, y);
+				pixels[i] = ints[i] | 0xFF000000;
 			}
 		}
+		else if (image.getType() == BufferedImage.TYPE_4BYTE_ABGR &&
+			bytes != null)
+		{
+			for (int i = 0, b = 0; i < pixels.length; i++, b += 4)
+			{
+				pixels[i] = (bytes[b] & 0xFF) << 24 |
+					(bytes[b + 3] & 0xFF) << 16 |
+					(bytes[b + 2] & 0xFF) << 8 | bytes[b + 1] & 0xFF;
+			}
+		}
+		else if (image.getType() == BufferedImage.TYPE_3BYTE_BGR &&
+			bytes != null)
+		{
+			for (int i = 0, b = 0; i < pixels.length; i++, b += 3)
+			{
+				pixels[i] = 0xFF000000 | (bytes[b + 2] & 0xFF) << 16 |
+					(bytes[b + 1] & 0xFF) << 8 | bytes[b] & 0xFF;
+			}
+		}
+		else
+			image.getRGB(0, 0, width, height, pixels, 0, width);
+
+		result.setPixels(pixels);
+		return result;
+	}
+
+	/**
+	Returns the ints behind a raster that holds one int per pixel, row after
+	row with nothing in between, or null if it is laid out any other way.
+	*/
+	private static int[] packedInts(WritableRaster raster, int width)
+	{
+		if (!(raster.getDataBuffer() instanceof DataBufferInt) ||
+			!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel))
+			return null;
+
+		DataBufferInt buffer = (DataBufferInt)raster.getDataBuffer();
+		SinglePixelPackedSampleModel model =
+			(SinglePixelPackedSampleModel)raster.getSampleModel();
+		if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0 ||
+			model.getScanlineStride() != width ||
+			raster.getSampleModelTranslateX() != 0 ||
+			raster.getSampleModelTranslateY() != 0 ||
+			buffer.getSize() != width * raster.getHeight())
+			return null;
+		return buffer.getData();
+	}
+
+	/**
+	Returns the bytes behind a raster that holds its samples interleaved in
+	one byte each, row after row with nothing in between, or null if it is
+	laid out any other way. Which byte is which depends on the image type.
+	*/
+	private static byte[] interleavedBytes(WritableRaster raster, int width)
+	{
+		if (!(raster.getDataBuffer() instanceof DataBufferByte) ||
+			!(raster.getSampleModel() instanceof PixelInterleavedSampleModel))
+			return null;
+
+		DataBufferByte buffer = (DataBufferByte)raster.getDataBuffer();
+		PixelInterleavedSampleModel model =
+			(PixelInterleavedSampleModel)raster.getSampleModel();
+		int bands = model.getNumBands();
+		int[] offsets = model.getBandOffsets();
+		for (int band = 0; band < bands; band++)
+		{
+			if (offsets[band] != bands - 1 - band) return null;
+		}
+		if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0 ||
+			model.getPixelStride() != bands ||
+			model.getScanlineStride() != width * bands ||
+			raster.getSampleModelTranslateX() != 0 ||
+			raster.getSampleModelTranslateY() != 0 ||
+			buffer.getSize() != width * bands * raster.getHeight())
+			return null;
+		return buffer.getData();
 	}
 
 	/**
@@ -48,7 +213,11 @@ class Image extends Bitmap
 	{
 		try
 		{
-			return new Image(ImageIO.read(new File(filename)));
+			Image image = of(ImageIO.read(new File(filename)));
+
+			// Work out the opacity now rather than on the first blit
+			image.getOpacity();
+			return image;
 		}
 		catch (Exception e)
 		{
@@ -64,7 +233,18 @@ class Image extends Bitmap
 	{
 		try
 		{
-			ImageIO.write(asBufferedImage(), "png", new File(filename));
+			Image straight = this;
+			if (isPremultiplied())
+			{
+				straight = new Image(getWidth(), getHeight());
+				for (int i = 0; i < getSize(); i++)
+				{
+					straight.getPixels()[i] = Pixel.unpremultiply(
+						getPixels()[i]);
+				}
+			}
+			ImageIO.write(straight.asBufferedImage(), "png",
+				new File(filename));
 		}
 		catch (Exception e)
 		{
@@ -73,22 +253,23 @@ class Image extends Bitmap
 	}
 
 	/**
-	Return the contents of this Image as a BufferedImage (Java Standard Lib).
+	Return the contents of this Image as a BufferedImage (Java Standard Lib)
+	of `TYPE_INT_ARGB`, or `TYPE_INT_ARGB_PRE` if it is premultiplied. No
+	pixels are copied: the BufferedImage shares this Image's pixels, so it
+	shows whatever is drawn here from then on. Anything drawn on the
+	BufferedImage must be followed by a call to `setPixels`.
 	*/
 	public BufferedImage asBufferedImage()
 	{
-		BufferedImage img = new BufferedImage(getWidth(), getHeight(),
-			BufferedImage.TYPE_INT_ARGB);
-
-
-		for (int i = 0; i < getSize(); i++)
-		{
-			int destX = i % getWidth();
-			int destY = i / getWidth();
-			img.setRGB(destX, destY, getPixels()[i]);
-		}
-
-		return img;
+		DataBufferInt buffer = new DataBufferInt(getPixels(), getSize());
+		DirectColorModel model = (DirectColorModel)ColorModel.getRGBdefault();
+		if (isPremultiplied())
+			model = new DirectColorModel(model.getColorSpace(), 32,
+				model.getRedMask(), model.getGreenMask(), model.getBlueMask(),
+				model.getAlphaMask(), true, DataBuffer.TYPE_INT);
+		WritableRaster raster = Raster.createPackedRaster(buffer, getWidth(),
+			getHeight(), getWidth(), model.getMasks(), null);
+		return new BufferedImage(model, raster, isPremultiplied(), null);
 	}
 
 	/**
@@ -98,27 +279,157 @@ class Image extends Bitmap
 	{
 		out.writeInt(getWidth());
 		out.writeInt(getHeight());
+		writeInts(out, getPixels(), 0, getSize(), isPremultiplied());
+	}
+
+
+	/**
+	Read the pixels from the network socket (in this case), populate an new
+	Image instance and then return it. Reuses pixels released to the shared
+	`PixelPool` if it has any of the right size.
+	*/
+	public static Image read(DataInputStream in) throws IOException
+	{
+		return read(in, Long.MAX_VALUE);
+	}
 
-		for (int pixel : getPixels())
+	/**
+	Same as `read`, but fails before allocating anything for an image of more
+	than `maxPixels` pixels.
+	*/
+	static Image read(DataInputStream in, long maxPixels) throws IOException
+	{
+		int width = in.readInt();
+		int height = in.readInt();
+		checkSize(width, height, maxPixels);
+		Image image = PixelPool.shared.borrow(width, height, false);
+		readInts(in, image.getPixels(), 0, image.getSize());
+		return image;
+	}
+
+	/**
+	Fails unless an image of the given size makes sense and has at most
+	`maxPixels` pixels.
+	*/
+	static void checkSize(int width, int height, long maxPixels)
+		throws RenderException
+	{
+		if (width < 0 || height < 0)
+			throw new RenderException(Protocol.INVALID, "Image of " + width +
+				"x" + height + " pixels");
+		if ((long)width * height > maxPixels)
+			throw new RenderException(Protocol.TOO_LARGE, "Image of " + width +
+				"x" + height + " pixels is over the limit of " + maxPixels);
+	}
+
+	/**
+	Writes integers as big endian bytes (like `writeInt` would), converting
+	them one chunk at a time and writing each chunk in one go.
+	*/
+	static void writeInts(OutputStream out, int[] values, int offset,
+		int count) throws IOException
+	{
+		writeInts(out, values, offset, count, false);
+	}
+
+	/**
+	Same as the other `writeInts`, but undoes `Pixel.premultiply` on the way
+	if `unpremultiply` is set, one chunk at a time.
+	*/
+	static void writeInts(OutputStream out, int[] values, int offset,
+		int count, boolean unpremultiply) throws IOException
+	{
+		byte[] chunk = new byte[Math.min(count, CHUNK_PIXELS) * 4];
+		IntBuffer ints = ByteBuffer.wrap(chunk).order(ByteOrder.BIG_ENDIAN)
+			.asIntBuffer();
+		int[] straight = unpremultiply ?
+			new int[Math.min(count, CHUNK_PIXELS)] : null;
+
+		for (int i = 0; i < count; i += CHUNK_PIXELS)
 		{
-			out.writeInt(pixel);
+			int length = Math.min(count - i, CHUNK_PIXELS);
+			ints.clear();
+			if (unpremultiply)
+			{
+				for (int j = 0; j < length; j++)
+				{
+					straight[j] = Pixel.unpremultiply(values[offset + i + j]);
+				}
+				ints.put(straight, 0, length);
+			}
+			else
+				ints.put(values, offset + i, length);
+			out.write(chunk, 0, length * 4);
 		}
 	}
 
+	/**
+	Reads integers written by `writeInts` (or one `writeInt` at a time).
+	*/
+	static void readInts(DataInputStream in, int[] values, int offset,
+		int count) throws IOException
+	{
+		byte[] chunk = new byte[Math.min(count, CHUNK_PIXELS) * 4];
+		IntBuffer ints = ByteBuffer.wrap(chunk).order(ByteOrder.BIG_ENDIAN)
+			.asIntBuffer();
+
+		for (int i = 0; i < count; i += CHUNK_PIXELS)
+		{
+			int length = Math.min(count - i, CHUNK_PIXELS);
+			in.readFully(chunk, 0, length * 4);
+			ints.clear();
+			ints.get(values, offset + i, length);
+		}
+	}
 
 	/**
-	Read the pixels from the network socket (in this case), populate an new
-	Image instance and then return it.
+	Write the pixels contained herein to a `ByteBuffer` in the same layout as
+	`write(DataOutputStream)`. The pixels are copied in bulk through an
+	`IntBuffer` view rather than one at a time.
 	*/
-	public static Image read(DataInputStream in) throws IOException
+	public void write(ByteBuffer buf)
 	{
-		Image image = new Image(in.readInt(), in.readInt());
+		buf.putInt(getWidth());
+		buf.putInt(getHeight());
+		if (buf.remaining() < getSize() * 4L)
+			throw new BufferOverflowException();
+		putPixels(buf, 0);
+	}
 
-		for (int i = 0; i < image.getSize(); i++)
+	/**
+	Puts as many pixels as fit into the buffer, starting with pixel `from`,
+	in the layout `write(ByteBuffer)` uses and returns the index of the first
+	pixel that did not fit. Lets an image that is bigger than the buffer be
+	sent one buffer full at a time.
+	*/
+	public int putPixels(ByteBuffer buf, int from)
+	{
+		int count = Math.min(getSize() - from, buf.remaining() / 4);
+		if (isPremultiplied())
 		{
-			image.getPixels()[i] = in.readInt();
+			for (int i = from; i < from + count; i++)
+			{
+				buf.putInt(Pixel.unpremultiply(getPixels()[i]));
+			}
+			return from + count;
 		}
 
+		buf.asIntBuffer().put(getPixels(), from, count);
+		buf.position(buf.position() + count * 4);
+		return from + count;
+	}
+
+	/**
+	Read an Image from a `ByteBuffer` that holds a complete image in the same
+	layout as `read(DataInputStream)`. The pixels are decoded in bulk through
+	an `IntBuffer` view.
+	*/
+	public static Image read(ByteBuffer buf)
+	{
+		Image image = PixelPool.shared.borrow(buf.getInt(), buf.getInt(),
+			false);
+		buf.asIntBuffer().get(image.getPixels(), 0, image.getSize());
+		buf.position(buf.position() + image.getSize() * 4);
 		return image;
 	}
 }
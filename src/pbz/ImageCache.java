@@ -0,0 +1,71 @@
+package pbz;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+Keeps decoded `Image`s around by their `ContentHash` so that clients only have
+to upload them once. The least recently used images are evicted as soon as the
+pixels held exceed the byte budget. Thread safe.
+
+Cached images are shared between requests and must never be drawn onto.
+*/
+class ImageCache
+{
+	private final long budget;
+	private long bytes;
+	private final LinkedHashMap<ContentHash, Image> images =
+		new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	Create an empty cache that holds at most `budget` bytes of pixels.
+	*/
+	public ImageCache(long budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	Returns the cached image with the given hash, or null on a miss.
+	*/
+	public synchronized Image get(ContentHash hash)
+	{
+		return images.get(hash);
+	}
+
+	/**
+	Adds an image, evicting the least recently used ones to stay within the
+	budget. Images bigger than the whole budget are not cached at all.
+	*/
+	public synchronized void put(ContentHash hash, Image image)
+	{
+		long size = sizeOf(image);
+		if (size > budget) return;
+
+		Image old = images.put(hash, image);
+		if (old != null) bytes -= sizeOf(old);
+		bytes += size;
+
+		Iterator<Map.Entry<ContentHash, Image>> eldest =
+			images.entrySet().iterator();
+		while (bytes > budget)
+		{
+			bytes -= sizeOf(eldest.next().getValue());
+			eldest.remove();
+		}
+	}
+
+	/**
+	Getter.
+	*/
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	private static long sizeOf(Image image)
+	{
+		return image.getSize() * 4L;
+	}
+}
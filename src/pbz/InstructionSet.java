@@ -3,6 +3,7 @@ package pbz;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Vector;
 
 /**
@@ -68,9 +69,7 @@ public class InstructionSet
 
         for (DrawInstruction inst : instructions)
         {
-            System.out.print("Writing Instruction...");
             inst.write(out);
-            System.out.println("\rWrote Instruction");
         }
     }
 
@@ -84,10 +83,58 @@ public class InstructionSet
         int numInstructions = in.readInt();
         for (int i = 0; i < numInstructions; i++)
         {
-            System.out.print("Reading Instruction...");
             set.addInstruction(DrawInstruction.read(in));
-            System.out.println("\rRead Instruction!");
         }
         return set;
     }
+
+    /**
+    Create and populate a new `InstructionSet` from a buffer that holds one
+    complete request. See `frameLength` for finding out when that is the case.
+    */
+    public static InstructionSet read(ByteBuffer buf)
+    {
+        InstructionSet set = new InstructionSet(buf.getInt(), buf.getInt());
+        int numInstructions = buf.getInt();
+        for (int i = 0; i < numInstructions; i++)
+        {
+            set.addInstruction(DrawInstruction.read(buf));
+        }
+        return set;
+    }
+
+    /**
+    Walks the headers of a serialized `InstructionSet` between position and
+    limit of the given buffer without consuming anything. Returns the total
+    length of the set in bytes if the buffer holds all of it, otherwise a
+    lower bound on that length which is greater than what is buffered.
+    */
+    public static long frameLength(ByteBuffer buf)
+    {
+        int start = buf.position();
+        long available = buf.remaining();
+
+        if (available < 12) return 12;
+
+        long length = 12;
+        int numInstructions = buf.getInt(start + 8);
+        if (numInstructions < 0) throw new IllegalArgumentException(
+            "Negative instruction count: " + numInstructions);
+
+        for (int i = 0; i < numInstructions; i++)
+        {
+            if (available < length + 8) return length + 8;
+
+            long width = buf.getInt(start + (int)length);
+            long height = buf.getInt(start + (int)length + 4);
+            if (width < 0 || height < 0) throw new IllegalArgumentException(
+                "Negative image size: " + width + "x" + height);
+
+            // Image header, pixels and the five transform floats
+            length += 8 + width * height * 4 + 20;
+            if (available < length) return length;
+        }
+
+        return length;
+    }
 }
@@ -0,0 +1,387 @@
+package pbz;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+Counts and times what the server does: how long reading requests, drawing
+them (and each kind of blit), encoding the results and writing them to the
+socket take, the bytes that go in and out, how many pixels were copied and
+how many blended, how many requests are waiting or were turned away, and
+how well the `PixelPool` does.
+Threads add to `LongAdder`s, so they never contend with each other, and
+`register` makes it all readable over JMX (see `MetricsMXBean`).
+
+Timing every blit costs a few dozen nanoseconds, which matters for the
+smallest ones, so setting `rendersiren.metrics` to false leaves out the
+timings of stages and blits and the pixel counts. Requests, rejections and
+bytes are still counted.
+*/
+final class Metrics implements MetricsMXBean
+{
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(
+		"rendersiren.metrics", "true"));
+
+	static final int READ = 0;
+	static final int RENDER = 1;
+	static final int ENCODE = 2;
+	static final int WRITE = 3;
+	private static final String[] STAGES = {
+		"read", "render", "encode", "write" };
+
+	static final int POS = 0;
+	static final int SCL = 1;
+	static final int ROT = 2;
+	static final int ROTSCL = 3;
+	private static final String[] BLITS = {
+		"blit.pos", "blit.scl", "blit.rot", "blit.rotscl" };
+
+	/**
+	What the server adds to and publishes.
+	*/
+	static final Metrics shared = new Metrics();
+
+	private final Timer[] stages = timers(STAGES.length);
+	private final Timer[] blits = timers(BLITS.length);
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder copied = new LongAdder();
+	private final LongAdder blended = new LongAdder();
+
+	/**
+	Publishes the shared metrics over JMX.
+	*/
+	static void register()
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(shared,
+				new ObjectName("pbz:type=RenderSiren"));
+		}
+		catch (JMException e)
+		{
+			System.err.println("Metrics not published over JMX: " + e);
+		}
+	}
+
+	/**
+	Adds the time one stage of a request took.
+	*/
+	void stage(int stage, long nanos)
+	{
+		if (ENABLED) stages[stage].add(nanos);
+	}
+
+	/**
+	Adds a blit of the given kind, how long it took and how many pixels it
+	copied and blended.
+	*/
+	void blit(int kind, long nanos, long copiedPixels, long blendedPixels)
+	{
+		blits[kind].add(nanos);
+		if (copiedPixels != 0) copied.add(copiedPixels);
+		if (blendedPixels != 0) blended.add(blendedPixels);
+	}
+
+	/**
+	Counts a request as read and waiting to be answered.
+	*/
+	void requestStarted()
+	{
+		pending.incrementAndGet();
+	}
+
+	/**
+	Counts a request as answered, whether that worked or not.
+	*/
+	void requestDone()
+	{
+		pending.decrementAndGet();
+		requests.increment();
+	}
+
+	/**
+	Counts a request turned away with an error rather than answered.
+	*/
+	void rejected()
+	{
+		rejected.increment();
+	}
+
+	/**
+	Adds bytes read from a client.
+	*/
+	void bytesIn(long bytes)
+	{
+		if (bytes > 0) bytesIn.add(bytes);
+	}
+
+	/**
+	Adds bytes written to a client.
+	*/
+	void bytesOut(long bytes)
+	{
+		if (bytes > 0) bytesOut.add(bytes);
+	}
+
+	@Override
+	public long getRequests()
+	{
+		return requests.sum();
+	}
+
+	@Override
+	public long getRejectedRequests()
+	{
+		return rejected.sum();
+	}
+
+	@Override
+	public int getPendingRequests()
+	{
+		return pending.get();
+	}
+
+	@Override
+	public int getWaitingRenders()
+	{
+		return RenderSiren.waitingRenders();
+	}
+
+	@Override
+	public long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getPixelsCopied()
+	{
+		return copied.sum();
+	}
+
+	@Override
+	public long getPixelsBlended()
+	{
+		return blended.sum();
+	}
+
+	@Override
+	public long getPoolHits()
+	{
+		return PixelPool.shared.getHits();
+	}
+
+	@Override
+	public long getPoolMisses()
+	{
+		return PixelPool.shared.getMisses();
+	}
+
+	@Override
+	public long getPoolDropped()
+	{
+		return PixelPool.shared.getDropped();
+	}
+
+	@Override
+	public long getPoolBytes()
+	{
+		return PixelPool.shared.getBytes();
+	}
+
+	@Override
+	public Map<String, Long> getCounts()
+	{
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (int i = 0; i < STAGES.length; i++)
+		{
+			counts.put(STAGES[i], stages[i].count.sum());
+		}
+		for (int i = 0; i < BLITS.length; i++)
+		{
+			counts.put(BLITS[i], blits[i].count.sum());
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Double> getTotalMillis()
+	{
+		return each(timer -> timer.total.sum() / 1e6);
+	}
+
+	@Override
+	public Map<String, Double> getMeanMicros()
+	{
+		return each(timer -> {
+			long count = timer.count.sum();
+			return count == 0 ? 0 : timer.total.sum() / 1e3 / count;
+		});
+	}
+
+	@Override
+	public Map<String, Double> getMaxMicros()
+	{
+		return each(timer -> timer.max.get() / 1e3);
+	}
+
+	@Override
+	public void reset()
+	{
+		for (Timer timer : stages)
+		{
+			timer.reset();
+		}
+		for (Timer timer : blits)
+		{
+			timer.reset();
+		}
+		requests.reset();
+		rejected.reset();
+		bytesIn.reset();
+		bytesOut.reset();
+		copied.reset();
+		blended.reset();
+	}
+
+	/**
+	Returns a value worked out from every timer, by name.
+	*/
+	private Map<String, Double> each(ToDoubleFunction<Timer> value)
+	{
+		Map<String, Double> values = new LinkedHashMap<>();
+		for (int i = 0; i < STAGES.length; i++)
+		{
+			values.put(STAGES[i], value.applyAsDouble(stages[i]));
+		}
+		for (int i = 0; i < BLITS.length; i++)
+		{
+			values.put(BLITS[i], value.applyAsDouble(blits[i]));
+		}
+		return values;
+	}
+
+	private static Timer[] timers(int count)
+	{
+		Timer[] timers = new Timer[count];
+		for (int i = 0; i < count; i++)
+		{
+			timers[i] = new Timer();
+		}
+		return timers;
+	}
+
+	/**
+	How often something took how long, and the longest it took.
+	*/
+	private static class Timer
+	{
+		final LongAdder count = new LongAdder();
+		final LongAdder total = new LongAdder();
+		final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		void add(long nanos)
+		{
+			count.increment();
+			total.add(nanos);
+			max.accumulate(nanos);
+		}
+
+		void reset()
+		{
+			count.reset();
+			total.reset();
+			max.reset();
+		}
+	}
+
+	/**
+	Counts the bytes read from a socket.
+	*/
+	static class CountingInputStream extends FilterInputStream
+	{
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b >= 0) shared.bytesIn(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int read = super.read(b, off, len);
+			shared.bytesIn(read);
+			return read;
+		}
+	}
+
+	/**
+	Counts the bytes written to a socket and times the writes, which keeps a
+	running total of its own so that writers can tell how long they waited
+	for the socket.
+	*/
+	static class TimedOutputStream extends FilterOutputStream
+	{
+		private long nanos;
+
+		TimedOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			long start = System.nanoTime();
+			out.write(b, off, len);
+			long time = System.nanoTime() - start;
+			nanos += time;
+			shared.stage(WRITE, time);
+			shared.bytesOut(len);
+		}
+
+		/**
+		Returns the time spent writing so far. Only meaningful to whoever is
+		writing at the moment.
+		*/
+		long getNanos()
+		{
+			return nanos;
+		}
+	}
+}
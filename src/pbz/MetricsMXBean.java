@@ -0,0 +1,102 @@
+package pbz;
+
+import java.util.Map;
+
+/**
+What the `RenderSiren` server publishes over JMX as `pbz:type=RenderSiren`
+(see `Metrics`). Timings are keyed by stage ("read", "render", "encode",
+"write") and by blit kind ("blit.pos", "blit.scl", "blit.rot",
+"blit.rotscl").
+*/
+public interface MetricsMXBean
+{
+	/**
+	Returns the number of requests answered, or failed, so far.
+	*/
+	long getRequests();
+
+	/**
+	Returns the number of requests turned away as too large, malformed or
+	because the server was too busy.
+	*/
+	long getRejectedRequests();
+
+	/**
+	Returns the number of requests that have been read but not answered yet.
+	*/
+	int getPendingRequests();
+
+	/**
+	Returns the number of draws waiting for a render permit.
+	*/
+	int getWaitingRenders();
+
+	/**
+	Returns the number of bytes read from clients.
+	*/
+	long getBytesIn();
+
+	/**
+	Returns the number of bytes written to clients.
+	*/
+	long getBytesOut();
+
+	/**
+	Returns the number of pixels drawn by copying runs of opaque ones.
+	*/
+	long getPixelsCopied();
+
+	/**
+	Returns the number of pixels drawn through blending.
+	*/
+	long getPixelsBlended();
+
+	/**
+	Returns the number of images the `PixelPool` handed out with recycled
+	pixels.
+	*/
+	long getPoolHits();
+
+	/**
+	Returns the number of images the `PixelPool` handed out that needed new
+	pixels.
+	*/
+	long getPoolMisses();
+
+	/**
+	Returns the number of arrays released to the `PixelPool` that did not fit
+	in its budget.
+	*/
+	long getPoolDropped();
+
+	/**
+	Returns the bytes of pixels the `PixelPool` keeps for reuse.
+	*/
+	long getPoolBytes();
+
+	/**
+	Returns how many times each stage and blit kind was timed.
+	*/
+	Map<String, Long> getCounts();
+
+	/**
+	Returns the total time spent in each stage and blit kind.
+	*/
+	Map<String, Double> getTotalMillis();
+
+	/**
+	Returns the mean time of each stage and blit kind.
+	*/
+	Map<String, Double> getMeanMicros();
+
+	/**
+	Returns the longest time of each stage and blit kind.
+	*/
+	Map<String, Double> getMaxMicros();
+
+	/**
+	Starts counting from zero again. Pending requests and the counts of the
+	`PixelPool` are kept.
+	*/
+	void reset();
+}
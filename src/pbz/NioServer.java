@@ -0,0 +1,341 @@
+package pbz;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+Alternative, non-blocking engine for the `RenderSiren` server. A single event
+loop thread accepts connections and moves bytes in and out of direct buffers
+for all of them, so idle or slow clients cost nothing but a bit of memory.
+Only once an `InstructionSet` has been received completely is it handed to a
+render thread, which decodes the pixels in bulk and renders the result onto
+a canvas kept off the heap (see `Image.allocateDirect`), laid out just the
+way it is sent. The event loop then writes that buffer as it is, without
+copying a single pixel, and the buffer of the request is let go as soon as
+it has been decoded.
+
+Only speaks the original protocol (a bare `InstructionSet` answered with an
+`Image`), not the newer one described in `Protocol`. As that has no way to
+turn a request down, a request over the limits of the server, or one that
+arrives while it is too busy (see `Admission`), gets its connection closed
+as soon as that is known, before the rest of it is buffered. A request is
+taken on as soon as its first few bytes are in, and its buffer only grows as
+the rest actually arrives, never ahead to what the request says it will send.
+The buffers of all connections together are kept to
+`rendersiren.nioBufferBytes`; a connection that would need more is closed.
+*/
+class NioServer
+{
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    /**
+    Longest request taken: the most instructions allowed, each with an image
+    header and a transform, and the most pixel bytes allowed.
+    */
+    private static final long MAX_FRAME = Math.min(Integer.MAX_VALUE,
+        12 + RenderSiren.MAX_INSTRUCTIONS * 28L +
+        RenderSiren.MAX_REQUEST_BYTES);
+
+    /**
+    Bytes of direct buffers all connections may hold together.
+    */
+    private static final long MAX_BUFFERED = Long.getLong(
+        "rendersiren.nioBufferBytes", 256L << 20);
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ExecutorService renderers;
+
+    /**
+    Bytes of direct buffers held by connections. Only used by the event loop.
+    */
+    private long buffered;
+
+    /**
+    Work handed back to the event loop by the render threads. Keys may only be
+    touched from the event loop, so this is how they get there.
+    */
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+
+    /**
+    Bind to the given port. Nothing is accepted until `run` is called.
+    */
+    public NioServer(int port, int renderThreads) throws IOException
+    {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        renderers = Executors.newFixedThreadPool(renderThreads);
+    }
+
+    /**
+    Run the event loop forever.
+    */
+    public void run() throws IOException
+    {
+        while (true)
+        {
+            selector.select();
+
+            Runnable completion;
+            while ((completion = completions.poll()) != null)
+            {
+                completion.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try
+                {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    else if (key.isReadable()) read(key);
+                    else if (key.isWritable()) write(key);
+                }
+                catch (RenderException e)
+                {
+                    Metrics.shared.rejected();
+                    close(key);
+                }
+                catch (Throwable e)
+                {
+                    // Whatever goes wrong, even running out of memory, only
+                    // takes this connection down and not the event loop
+                    e.printStackTrace();
+                    close(key);
+                }
+            }
+        }
+    }
+
+    /**
+    Accept a pending connection and start reading from it.
+    */
+    private void accept() throws IOException
+    {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+
+        if (buffered + INITIAL_BUFFER > MAX_BUFFERED)
+        {
+            Metrics.shared.rejected();
+            channel.close();
+            return;
+        }
+
+        channel.configureBlocking(false);
+        Peer conn = new Peer();
+        conn.in = ByteBuffer.allocateDirect(INITIAL_BUFFER);
+        conn.buffered = INITIAL_BUFFER;
+        buffered += INITIAL_BUFFER;
+        channel.register(selector, SelectionKey.OP_READ, conn);
+    }
+
+    /**
+    Read whatever is available and, once a whole `InstructionSet` is in the
+    buffer, stop reading and pass it on to be rendered.
+    */
+    private void read(SelectionKey key) throws IOException
+    {
+        Peer conn = (Peer)key.attachment();
+        SocketChannel channel = (SocketChannel)key.channel();
+
+        int read = channel.read(conn.in);
+        if (read < 0)
+        {
+            close(key);
+            return;
+        }
+        Metrics.shared.bytesIn(read);
+
+        conn.in.flip();
+        boolean started = check(conn.in);
+        long length = InstructionSet.frameLength(conn.in);
+        conn.in.compact();
+
+        if (length > MAX_FRAME)
+            throw new RenderException(Protocol.TOO_LARGE, "Request of " +
+                length + " bytes");
+
+        if (started && !conn.admitted)
+        {
+            Admission.enter();
+            conn.admitted = true;
+        }
+
+        if (conn.in.position() < length)
+        {
+            if (!conn.in.hasRemaining()) grow(conn, length);
+            return;
+        }
+
+        key.interestOps(0);
+        conn.in.flip();
+        conn.answering = true;
+        Metrics.shared.requestStarted();
+        renderers.execute(() -> render(key, conn));
+    }
+
+    /**
+    Doubles the buffer of a connection that has filled it, but to no more
+    than the request is known to need. Fails if that would take the buffers
+    of all connections over their limit.
+    */
+    private void grow(Peer conn, long length) throws RenderException
+    {
+        int capacity = (int)Math.min(length, conn.in.capacity() * 2L);
+        if (buffered - conn.buffered + capacity > MAX_BUFFERED)
+            throw new RenderException(Protocol.BUSY, "Over " + MAX_BUFFERED +
+                " bytes buffered");
+
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        buffered += capacity - conn.buffered;
+        conn.buffered = capacity;
+        conn.in.flip();
+        grown.put(conn.in);
+        conn.in = grown;
+    }
+
+    /**
+    Fails if the canvas or number of instructions of the request at the
+    start of the buffer are over the limits of the server, once they have
+    arrived. Nothing is consumed. Returns whether they have arrived.
+    */
+    private static boolean check(ByteBuffer buf) throws RenderException
+    {
+        if (buf.remaining() < 12) return false;
+
+        int start = buf.position();
+        Admission.checkCanvas(buf.getInt(start), buf.getInt(start + 4));
+        Admission.checkCount(buf.getInt(start + 8), "instructions");
+        return true;
+    }
+
+    /**
+    Runs on a render thread. Decodes the request, renders it and queues the
+    encoded result to be written by the event loop.
+    */
+    private void render(SelectionKey key, Peer conn)
+    {
+        try
+        {
+            long start = System.nanoTime();
+            InstructionSet set = InstructionSet.read(conn.in);
+            for (DrawInstruction inst : set.getInstructions())
+            {
+                RenderSiren.ingest(inst.getImage());
+            }
+            Metrics.shared.stage(Metrics.READ, System.nanoTime() - start);
+
+            // The request has been decoded, so its buffer is free again
+            conn.in = null;
+            Image result = Image.allocateDirect(set.getCanvasWidth(),
+                set.getCanvasHeight());
+            result.setPremultiplied(RenderSiren.PREMULTIPLIED);
+            RenderSiren.draw(result, set.getInstructions());
+            PixelPool.shared.releaseImages(set);
+
+            start = System.nanoTime();
+            result.unpremultiply();
+            ByteBuffer out = result.getDirectBuffer();
+            Metrics.shared.stage(Metrics.ENCODE, System.nanoTime() - start);
+
+            completions.add(() -> {
+                // The result now takes the place of the request in the
+                // buffers held
+                buffered += out.capacity() - conn.buffered;
+                conn.buffered = out.capacity();
+                conn.out = out;
+                if (key.isValid()) key.interestOps(SelectionKey.OP_WRITE);
+            });
+        }
+        catch (Throwable e)
+        {
+            e.printStackTrace();
+            completions.add(() -> close(key));
+        }
+        selector.wakeup();
+    }
+
+    /**
+    Write as much of the result as the socket takes, straight from the buffer
+    it was drawn in, and close the connection once all of it has been.
+    */
+    private void write(SelectionKey key) throws IOException
+    {
+        Peer conn = (Peer)key.attachment();
+        SocketChannel channel = (SocketChannel)key.channel();
+        long start = System.nanoTime();
+        Metrics.shared.bytesOut(channel.write(conn.out));
+        Metrics.shared.stage(Metrics.WRITE, System.nanoTime() - start);
+        if (conn.out.hasRemaining()) return;
+
+        conn.out = null;
+        close(key);
+    }
+
+    /**
+    Cancel the key and close its channel. A request being answered counts as
+    done, whether all of its result got out or not, and its buffer no longer
+    counts as held.
+    */
+    private void close(SelectionKey key)
+    {
+        Object attachment = key.attachment();
+        if (attachment instanceof Peer)
+        {
+            Peer conn = (Peer)attachment;
+            if (conn.answering)
+            {
+                conn.answering = false;
+                Metrics.shared.requestDone();
+            }
+            if (conn.admitted)
+            {
+                conn.admitted = false;
+                Admission.leave();
+            }
+            buffered -= conn.buffered;
+            conn.buffered = 0;
+        }
+
+        key.cancel();
+        try
+        {
+            key.channel().close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+    Per connection state. Only ever used by one thread at a time: the event
+    loop while reading and writing, a render thread in between.
+    */
+    private static class Peer
+    {
+        ByteBuffer in;
+        ByteBuffer out;
+        long buffered;
+        boolean admitted;
+        boolean answering;
+    }
+}
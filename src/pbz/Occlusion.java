@@ -0,0 +1,135 @@
+package pbz;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+Finds the instructions that cannot change a single pixel of an area because
+they lie outside of it, draw nothing but transparent pixels, or end up under
+opaque, unrotated images drawn later on. Leaving those out gives exactly the
+same result, so a late background or opaque panels stacked on top of sprites
+only cost what can actually be seen.
+
+Works from the last instruction to the first and keeps the rectangles covered
+so far (see `Bitmap.blitCover`). Rectangles that line up, like the tiles of a
+tile map, are joined into bigger ones, but an instruction is only left out if
+one of them covers it completely.
+*/
+final class Occlusion
+{
+	/**
+	Covering rectangles kept at most, the biggest ones winning. Every
+	instruction is checked against all of them.
+	*/
+	private static final int MAX_COVERS = 32;
+
+	private Occlusion()
+	{
+	}
+
+	/**
+	Returns the instructions that are visible within the area, in their
+	original order.
+	*/
+	public static List<DrawInstruction> visible(
+		List<DrawInstruction> instructions, Rectangle area)
+	{
+		List<Rectangle> covers = new ArrayList<>();
+		List<DrawInstruction> visible = new ArrayList<>();
+		for (int i = instructions.size() - 1; i >= 0; i--)
+		{
+			DrawInstruction inst = instructions.get(i);
+			Rectangle drawn = inst.getBounds().intersection(area);
+			if (drawn.isEmpty() || covered(drawn, covers)) continue;
+
+			Image image = inst.getImage();
+			if (image.getOpacity().getKind() == Opacity.TRANSPARENT) continue;
+			visible.add(inst);
+
+			Rectangle cover = Bitmap.blitCover(image, inst.getX(), inst.getY(),
+				inst.getRot(), inst.getSclx(), inst.getScly()).intersection(
+				area);
+			if (cover.isEmpty()) continue;
+
+			// Everything before this is hidden
+			if (cover.equals(area)) break;
+			add(cover, covers);
+		}
+
+		Collections.reverse(visible);
+		return visible;
+	}
+
+	/**
+	Whether one of the covering rectangles contains the whole rectangle.
+	*/
+	private static boolean covered(Rectangle drawn, List<Rectangle> covers)
+	{
+		for (Rectangle cover : covers)
+		{
+			if (cover.contains(drawn)) return true;
+		}
+		return false;
+	}
+
+	/**
+	Adds a covering rectangle, joining it with the ones it lines up with for
+	as long as the union is a rectangle again.
+	*/
+	private static void add(Rectangle cover, List<Rectangle> covers)
+	{
+		boolean grown = true;
+		while (grown)
+		{
+			grown = false;
+			for (int i = 0; i < covers.size(); i++)
+			{
+				Rectangle other = covers.get(i);
+				if (other.contains(cover)) return;
+				if (cover.contains(other) || joins(cover, other))
+				{
+					cover = cover.union(other);
+					covers.remove(i);
+					grown = true;
+					break;
+				}
+			}
+		}
+		covers.add(cover);
+
+		if (covers.size() > MAX_COVERS)
+		{
+			int smallest = 0;
+			for (int i = 1; i < covers.size(); i++)
+			{
+				if (pixels(covers.get(i)) < pixels(covers.get(smallest)))
+					smallest = i;
+			}
+			covers.remove(smallest);
+		}
+	}
+
+	/**
+	Whether both rectangles span the same rows and overlap or meet
+	horizontally, or the same columns and overlap or meet vertically, which
+	is when their union covers nothing else.
+	*/
+	private static boolean joins(Rectangle a, Rectangle b)
+	{
+		if (a.y == b.y && a.height == b.height)
+			return a.x <= b.x + b.width && b.x <= a.x + a.width;
+		if (a.x == b.x && a.width == b.width)
+			return a.y <= b.y + b.height && b.y <= a.y + a.height;
+		return false;
+	}
+
+	/**
+	Returns the number of pixels in the rectangle.
+	*/
+	private static long pixels(Rectangle r)
+	{
+		return (long)r.width * r.height;
+	}
+}
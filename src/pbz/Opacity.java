@@ -0,0 +1,123 @@
+package pbz;
+
+import java.util.Arrays;
+
+/**
+Describes which parts of a bitmap are fully opaque, fully transparent or a mix
+of the two, for the whole bitmap, per row and per run of pixels within a row.
+Lets blits copy opaque runs with `System.arraycopy`, skip transparent ones and
+only blend what really needs blending.
+
+Immutable. Created by `Bitmap.getOpacity`, which throws it away whenever the
+bitmap is drawn on.
+*/
+final class Opacity
+{
+	static final int TRANSPARENT = 0;
+	static final int OPAQUE = 1;
+	static final int MIXED = 2;
+
+	/**
+	Rows split into more runs than this fraction of their width are just
+	blended as a whole rather than keeping all of those runs around.
+	*/
+	private static final int MAX_RUNS_PER_PIXEL = 8;
+
+	private final int kind;
+	private final int[] rowKinds;
+	private final int[][] runs;
+
+	private Opacity(int kind, int[] rowKinds, int[][] runs)
+	{
+		this.kind = kind;
+		this.rowKinds = rowKinds;
+		this.runs = runs;
+	}
+
+	/**
+	Look at every pixel of the bitmap and sort it into runs.
+	*/
+	public static Opacity of(Bitmap bitmap)
+	{
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int[] pixels = bitmap.getPixels();
+		int[] rowKinds = new int[height];
+		int[][] runs = new int[height][];
+		int[] row = new int[16];
+		boolean anyOpaque = false;
+		boolean anyTransparent = false;
+		boolean anyMixed = false;
+
+		for (int y = 0; y < height; y++)
+		{
+			// Pairs of where a run starts and what kind it is
+			int length = 0;
+			int previous = -1;
+			for (int x = 0; x < width; x++)
+			{
+				int current = kindOf(pixels[x + y * width]);
+				if (current == previous) continue;
+
+				if (row.length < length + 2)
+					row = Arrays.copyOf(row, row.length * 2);
+				row[length++] = x;
+				row[length++] = current;
+				previous = current;
+			}
+
+			if (length == 2 && row[1] != MIXED)
+			{
+				rowKinds[y] = row[1];
+				anyOpaque |= row[1] == OPAQUE;
+				anyTransparent |= row[1] == TRANSPARENT;
+			}
+			else if (length > 0)
+			{
+				rowKinds[y] = MIXED;
+				anyMixed = true;
+				if (length / 2 <= Math.max(1, width / MAX_RUNS_PER_PIXEL))
+					runs[y] = Arrays.copyOf(row, length);
+			}
+		}
+
+		int kind = anyMixed || (anyOpaque && anyTransparent) ? MIXED :
+			anyOpaque ? OPAQUE : TRANSPARENT;
+		return new Opacity(kind, rowKinds, runs);
+	}
+
+	/**
+	Returns the kind of a single color.
+	*/
+	public static int kindOf(int color)
+	{
+		int alpha = color >>> 24;
+		return alpha == 255 ? OPAQUE : alpha == 0 ? TRANSPARENT : MIXED;
+	}
+
+	/**
+	Returns the kind of the whole bitmap. Empty bitmaps are transparent.
+	*/
+	public int getKind()
+	{
+		return kind;
+	}
+
+	/**
+	Returns the kind of one row.
+	*/
+	public int getRowKind(int y)
+	{
+		return rowKinds[y];
+	}
+
+	/**
+	Returns the runs a `MIXED` row consists of as pairs of the column each run
+	starts at and its kind, each run ending where the next one starts. Null if
+	the row is not `MIXED` or is too fragmented for runs to be worth it.
+	*/
+	public int[] getRuns(int y)
+	{
+		return runs[y];
+	}
+}
@@ -54,31 +54,175 @@ class Pixel
 	}
 
 	/**
-	Blends 2 colors together if the top one even slightly transparent.
+	Blends 2 colors together if the top one even slightly transparent. The top
+	color is weighted by its alpha and the bottom one by what is left of it,
+	using integer math only: red and blue are blended together in one
+	multiply, and the division by 255 is done exactly with shifts and adds.
 	*/
 	public static int blendColor(int a, int b)
 	{
-		int balpha = getChannelAlpha(b);
-
-		// Exit early?
-		if (balpha == 255) return b;
-
-		int bred 	= getChannelRed(b);
-		int bgreen 	= getChannelGreen(b);
-		int bblue 	= getChannelBlue(b);
-		int aalpha 	= getChannelAlpha(a);
-		int ared 	= getChannelRed(a);
-		int agreen 	= getChannelGreen(a);
-		int ablue 	= getChannelBlue(a);
-		int falpha, fred, fgreen, fblue;
-		double barf = balpha / 255.0f;
-		double brem = (255 - balpha) / 255.0f;
-
-		fred   = (int)(bred   * barf + ared   * brem);
-		fgreen = (int)(bgreen * barf + agreen * brem);
-		fblue  = (int)(bblue  * barf + ablue  * brem);
-		falpha = Math.min(aalpha + balpha, 255);
-
-		return createColor(falpha, fred, fgreen, fblue);
+		// No need to exit early for opaque or invisible colors, both come out
+		// exactly right and skipping the branches is faster on mixed rows.
+		int balpha = b >>> 24;
+		int brem = 255 - balpha;
+		int rb = (b & 0xFF00FF) * balpha + (a & 0xFF00FF) * brem;
+		int g  = (b & 0x00FF00) * balpha + (a & 0x00FF00) * brem;
+
+		// x / 255 == (x + 1 + (x >> 8)) >> 8 for every x that can occur here,
+		// applied to both the red and the blue half of `rb` at once.
+		rb = ((rb + 0x010001 + ((rb >>> 8) & 0xFF00FF)) >>> 8) & 0xFF00FF;
+		g  = ((g  + 0x000100 + ((g  >>> 8) & 0x00FF00)) >>> 8) & 0x00FF00;
+
+		int falpha = Math.min((a >>> 24) + balpha, 255);
+		return (falpha << 24) | rb | g;
+	}
+
+	/**
+	Composites a premultiplied color over another one with the "over"
+	operator: all four channels of the bottom color are scaled by what the
+	top one lets through and the top one is added. That is one multiply for
+	red and blue and one for alpha and green, half of what `blendColor`
+	needs, since the top color was multiplied by its alpha once up front.
+	*/
+	public static int overColor(int a, int b)
+	{
+		int brem = 255 - (b >>> 24);
+		int rb = (a & 0xFF00FF) * brem;
+		int ag = ((a >>> 8) & 0xFF00FF) * brem;
+
+		// Rounded division by 255 of both halves at once, which never
+		// exceeds 255 - the top alpha, so adding the top color cannot carry
+		rb += 0x800080;
+		ag += 0x800080;
+		rb = ((rb + ((rb >>> 8) & 0xFF00FF)) >>> 8) & 0xFF00FF;
+		ag = (ag + ((ag >>> 8) & 0xFF00FF)) & 0xFF00FF00;
+		return b + (ag | rb);
+	}
+
+	/**
+	Returns a color with its red, green and blue multiplied by its alpha, as
+	`overColor` and premultiplied bitmaps expect them.
+	*/
+	public static int premultiply(int color)
+	{
+		int alpha = color >>> 24;
+		if (alpha == 255) return color;
+		if (alpha == 0) return 0;
+
+		int rb = (color & 0xFF00FF) * alpha + 0x800080;
+		int g = (color & 0x00FF00) * alpha + 0x008000;
+		rb = ((rb + ((rb >>> 8) & 0xFF00FF)) >>> 8) & 0xFF00FF;
+		g = ((g + ((g >>> 8) & 0x00FF00)) >>> 8) & 0x00FF00;
+		return color & 0xFF000000 | rb | g;
+	}
+
+	/**
+	Multiplied by 65536 / alpha * 255, so that dividing a channel by its
+	alpha is a multiply and a shift.
+	*/
+	private static final int[] UNPREMULTIPLY = new int[256];
+	static
+	{
+		for (int alpha = 1; alpha < 256; alpha++)
+		{
+			UNPREMULTIPLY[alpha] = (255 * 65536 + alpha / 2) / alpha;
+		}
+	}
+
+	/**
+	Undoes `premultiply`, as far as the lost precision allows. Fully
+	transparent colors come out as transparent black.
+	*/
+	public static int unpremultiply(int color)
+	{
+		int alpha = color >>> 24;
+		if (alpha == 255 || alpha == 0) return color;
+
+		int scale = UNPREMULTIPLY[alpha];
+		int r = Math.min(((color >> 16 & 0xFF) * scale + 0x8000) >>> 16, 255);
+		int g = Math.min(((color >> 8 & 0xFF) * scale + 0x8000) >>> 16, 255);
+		int b = Math.min(((color & 0xFF) * scale + 0x8000) >>> 16, 255);
+		return color & 0xFF000000 | r << 16 | g << 8 | b;
+	}
+
+	/**
+	Blends a whole row of colors onto another one at once, the same as calling
+	`blendColor` for every pair. Meant for rows that mix opaque, transparent
+	and translucent colors, which `Opacity` has already told apart from runs
+	that are all one or the other, so there is no checking of alpha and the
+	loop has no branches to mispredict.
+	*/
+	public static void blendSpan(int[] dest, int destIndex, int[] src,
+		int srcIndex, int length)
+	{
+		blendSpan(dest, destIndex, src, srcIndex, length, false);
+	}
+
+	/**
+	Same as the other `blendSpan`, but with `overColor` instead of
+	`blendColor` for premultiplied colors.
+	*/
+	public static void blendSpan(int[] dest, int destIndex, int[] src,
+		int srcIndex, int length, boolean premultiplied)
+	{
+		if (premultiplied && length >= STAGED)
+		{
+			overStaged(dest, destIndex, src, srcIndex, length);
+			return;
+		}
+
+		int offset = destIndex - srcIndex;
+		int end = srcIndex + length;
+		if (premultiplied)
+		{
+			for (int i = srcIndex; i < end; i++)
+			{
+				dest[i + offset] = overColor(dest[i + offset], src[i]);
+			}
+		}
+		else
+		{
+			for (int i = srcIndex; i < end; i++)
+			{
+				dest[i + offset] = blendColor(dest[i + offset], src[i]);
+			}
+		}
+	}
+
+	/**
+	Spans at least this long are composited through `stages`.
+	*/
+	private static final int STAGED = 128;
+
+	/**
+	Two rows per thread that spans of premultiplied colors are copied into,
+	so that both are read at the same index. The JIT only turns the
+	`overColor` loop into vector instructions then, since it cannot tell
+	that two different offsets into what may be the same array never
+	overlap, and that makes it several times faster.
+	*/
+	private static final ThreadLocal<int[][]> stages =
+		ThreadLocal.withInitial(() -> new int[2][2048]);
+
+	/**
+	Composites a long span of premultiplied colors a stage at a time.
+	*/
+	private static void overStaged(int[] dest, int destIndex, int[] src,
+		int srcIndex, int length)
+	{
+		int[][] stage = stages.get();
+		int[] under = stage[0];
+		int[] over = stage[1];
+		for (int done = 0; done < length; done += under.length)
+		{
+			int count = Math.min(under.length, length - done);
+			System.arraycopy(dest, destIndex + done, under, 0, count);
+			System.arraycopy(src, srcIndex + done, over, 0, count);
+			for (int i = 0; i < count; i++)
+			{
+				under[i] = overColor(under[i], over[i]);
+			}
+			System.arraycopy(under, 0, dest, destIndex + done, count);
+		}
 	}
 }
@@ -0,0 +1,304 @@
+package pbz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+The ways an `Image` can be encoded on the wire once client and server have
+agreed on one during the handshake (see `Protocol`). Every encoding starts
+with the width and height of the image just like `Image.write`:
+
+    RAW      The pixels as they are, exactly what `Image.write` sends.
+
+    RLE      Runs of integers. A positive count is followed by that many
+             literal pixels, a negative one by a single pixel that repeats
+             -count times. Cheap, and good at transparent borders and flat
+             areas.
+
+    DEFLATE  The byte length of the compressed data followed by the raw
+             pixels compressed with `java.util.zip.Deflater`. The level only
+             matters to the sender and is not part of the stream.
+*/
+abstract class PixelCodec
+{
+	static final int RAW = 0;
+	static final int RLE = 1;
+	static final int DEFLATE = 2;
+
+	/**
+	Shortest run that is worth encoding as a repeat rather than literally.
+	*/
+	private static final int MIN_REPEAT = 3;
+
+	/**
+	Returns the codec for the given encoding. The deflate level is only used
+	by `DEFLATE` and only affects encoding.
+	*/
+	public static PixelCodec forEncoding(int encoding, int deflateLevel)
+	{
+		switch (encoding)
+		{
+			case RAW: return new Raw();
+			case RLE: return new RunLength();
+			case DEFLATE: return new Deflate(deflateLevel);
+			default: throw new IllegalArgumentException(
+				"Unknown encoding: " + encoding);
+		}
+	}
+
+	/**
+	Returns the encoding for a name like "rle" as used in configuration.
+	*/
+	public static int parseEncoding(String name)
+	{
+		switch (name.trim().toLowerCase())
+		{
+			case "raw": return RAW;
+			case "rle": return RLE;
+			case "deflate": return DEFLATE;
+			default: throw new IllegalArgumentException(
+				"Unknown encoding: " + name);
+		}
+	}
+
+	/**
+	Encode the image onto the stream.
+	*/
+	public abstract void write(Image image, DataOutputStream out)
+		throws IOException;
+
+	/**
+	Decode an image from the stream.
+	*/
+	public Image read(DataInputStream in) throws IOException
+	{
+		return read(in, Long.MAX_VALUE);
+	}
+
+	/**
+	Decode an image from the stream, failing before allocating anything for
+	it if it has more than `maxPixels` pixels.
+	*/
+	public abstract Image read(DataInputStream in, long maxPixels)
+		throws IOException;
+
+	/**
+	Reads the size of an image, checks it and borrows the image from the
+	`PixelPool`. Decoders overwrite every pixel or fail.
+	*/
+	private static Image readHeader(DataInputStream in, long maxPixels)
+		throws IOException
+	{
+		int width = in.readInt();
+		int height = in.readInt();
+		Image.checkSize(width, height, maxPixels);
+		return PixelPool.shared.borrow(width, height, false);
+	}
+
+	/**
+	No encoding at all.
+	*/
+	private static class Raw extends PixelCodec
+	{
+		@Override
+		public void write(Image image, DataOutputStream out) throws IOException
+		{
+			image.write(out);
+		}
+
+		@Override
+		public Image read(DataInputStream in, long maxPixels)
+			throws IOException
+		{
+			return Image.read(in, maxPixels);
+		}
+	}
+
+	/**
+	Undoes `Pixel.premultiply` for `count` pixels starting at `offset`.
+	*/
+	private static void unpremultiply(int[] pixels, int offset, int count)
+	{
+		for (int i = offset; i < offset + count; i++)
+		{
+			pixels[i] = Pixel.unpremultiply(pixels[i]);
+		}
+	}
+
+	/**
+	Run length encoding of whole pixels. Runs are found among the pixels as
+	they are held, which for a premultiplied image are only converted back
+	once per run.
+	*/
+	private static class RunLength extends PixelCodec
+	{
+		@Override
+		public void write(Image image, DataOutputStream out) throws IOException
+		{
+			int[] pixels = image.getPixels();
+			int size = image.getSize();
+			boolean premultiplied = image.isPremultiplied();
+
+			// Counts and pixels, grown as needed
+			int[] runs = new int[16];
+			int length = 0;
+			int literals = 0;
+			int i = 0;
+
+			while (i <= size)
+			{
+				int repeat = 1;
+				while (i + repeat < size && pixels[i + repeat] == pixels[i])
+				{
+					repeat++;
+				}
+
+				// Flush pending literals before a repeat or at the end
+				if ((i == size || repeat >= MIN_REPEAT) && literals > 0)
+				{
+					if (runs.length < length + literals + 1)
+						runs = Arrays.copyOf(runs,
+							Math.max(runs.length * 2, length + literals + 1));
+					runs[length++] = literals;
+					System.arraycopy(pixels, i - literals, runs, length,
+						literals);
+					if (premultiplied)
+						unpremultiply(runs, length, literals);
+					length += literals;
+					literals = 0;
+				}
+
+				if (i == size) break;
+
+				if (repeat >= MIN_REPEAT)
+				{
+					if (runs.length < length + 2)
+						runs = Arrays.copyOf(runs, runs.length * 2);
+					runs[length++] = -repeat;
+					runs[length++] = premultiplied ?
+						Pixel.unpremultiply(pixels[i]) : pixels[i];
+					i += repeat;
+				}
+				else
+				{
+					literals++;
+					i++;
+				}
+			}
+
+			out.writeInt(image.getWidth());
+			out.writeInt(image.getHeight());
+			out.writeInt(length);
+			Image.writeInts(out, runs, 0, length);
+		}
+
+		@Override
+		public Image read(DataInputStream in, long maxPixels)
+			throws IOException
+		{
+			Image image = readHeader(in, maxPixels);
+			int length = in.readInt();
+			if (length < 0 || length > image.getSize() * 2L)
+				throw new IOException("Bad run length data: " + length);
+
+			int[] runs = new int[length];
+			Image.readInts(in, runs, 0, length);
+
+			int[] pixels = image.getPixels();
+			int pixel = 0;
+			int i = 0;
+			try
+			{
+				while (i < length)
+				{
+					int count = runs[i++];
+					if (count > 0)
+					{
+						System.arraycopy(runs, i, pixels, pixel, count);
+						i += count;
+						pixel += count;
+					}
+					else
+					{
+						Arrays.fill(pixels, pixel, pixel - count, runs[i++]);
+						pixel -= count;
+					}
+				}
+			}
+			catch (IndexOutOfBoundsException | IllegalArgumentException e)
+			{
+				throw new IOException("Bad run length data", e);
+			}
+
+			if (pixel != image.getSize())
+				throw new IOException("Run length data holds " + pixel +
+					" of " + image.getSize() + " pixels");
+
+			return image;
+		}
+	}
+
+	/**
+	The raw pixels compressed with zlib.
+	*/
+	private static class Deflate extends PixelCodec
+	{
+		private final int level;
+
+		Deflate(int level)
+		{
+			this.level = level;
+		}
+
+		@Override
+		public void write(Image image, DataOutputStream out) throws IOException
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				image.getSize());
+			Deflater deflater = new Deflater(level);
+			try (DeflaterOutputStream zip = new DeflaterOutputStream(bytes,
+				deflater, Image.CHUNK_PIXELS * 4))
+			{
+				Image.writeInts(zip, image.getPixels(), 0, image.getSize(),
+					image.isPremultiplied());
+			}
+			finally
+			{
+				deflater.end();
+			}
+
+			out.writeInt(image.getWidth());
+			out.writeInt(image.getHeight());
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+		}
+
+		@Override
+		public Image read(DataInputStream in, long maxPixels)
+			throws IOException
+		{
+			Image image = readHeader(in, maxPixels);
+			int length = in.readInt();
+			if (length < 0 || length > image.getSize() * 8L + 1024)
+				throw new IOException("Bad deflate length: " + length);
+
+			byte[] compressed = new byte[length];
+			in.readFully(compressed);
+
+			try (DataInputStream zip = new DataInputStream(
+				new InflaterInputStream(new ByteArrayInputStream(compressed))))
+			{
+				Image.readInts(zip, image.getPixels(), 0, image.getSize());
+			}
+
+			return image;
+		}
+	}
+}
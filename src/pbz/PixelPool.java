@@ -0,0 +1,172 @@
+package pbz;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+Hands out pixel arrays that earlier requests are done with, so that serving a
+request does not have to allocate (and the garbage collector then clear away)
+a new canvas and a new array for every image it reads. Arrays are kept by
+their size in pixels, which is the size class they are handed out for, since
+canvases come in the same few sizes over and over and an array of exactly
+the right length keeps every image just like a freshly allocated one. The
+sizes used least recently are dropped first once the arrays kept exceed the
+byte budget. Thread safe.
+
+An image must only be released once nothing will ever look at it again, as
+its pixels are handed to somebody else.
+*/
+class PixelPool
+{
+	/**
+	The pool the server uses, keeping up to `rendersiren.poolBytes` bytes of
+	pixels (64 MiB).
+	*/
+	static final PixelPool shared = new PixelPool(Long.getLong(
+		"rendersiren.poolBytes", 64L << 20));
+
+	/**
+	Arrays smaller than this are cheaper to allocate than to keep track of.
+	*/
+	private static final int MIN_PIXELS = 1024;
+
+	private final long budget;
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long dropped;
+	private final LinkedHashMap<Integer, ArrayDeque<int[]>> classes =
+		new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	Create an empty pool that keeps at most `budget` bytes of pixels.
+	*/
+	public PixelPool(long budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	Returns an image of the given size, with every pixel transparent if
+	`clear` is set and anything at all in it otherwise, for when every pixel
+	is about to be overwritten anyway.
+	*/
+	public Image borrow(int width, int height, boolean clear)
+	{
+		int size = width * height;
+		int[] pixels = size < MIN_PIXELS ? null : take(size);
+		if (pixels == null) return new Image(width, height);
+
+		if (clear) Arrays.fill(pixels, 0);
+		return new Image(width, height, pixels);
+	}
+
+	/**
+	Takes the pixels of an image back for someone else to use. The image
+	must not be used any more afterwards.
+	*/
+	public void release(Bitmap image)
+	{
+		if (image == null) return;
+		int[] pixels = image.getPixels();
+		if (pixels == null || pixels.length < MIN_PIXELS) return;
+		image.setPixels(null);
+
+		long size = pixels.length * 4L;
+		synchronized (this)
+		{
+			if (size > budget)
+			{
+				dropped++;
+				return;
+			}
+
+			classes.computeIfAbsent(pixels.length, length ->
+				new ArrayDeque<>()).push(pixels);
+			bytes += size;
+
+			Iterator<Map.Entry<Integer, ArrayDeque<int[]>>> eldest =
+				classes.entrySet().iterator();
+			while (bytes > budget)
+			{
+				Map.Entry<Integer, ArrayDeque<int[]>> entry = eldest.next();
+				ArrayDeque<int[]> arrays = entry.getValue();
+				while (bytes > budget && !arrays.isEmpty())
+				{
+					bytes -= arrays.removeLast().length * 4L;
+					dropped++;
+				}
+				if (arrays.isEmpty()) eldest.remove();
+			}
+		}
+	}
+
+	/**
+	Releases the images of all the instructions of a set that has been
+	drawn, as read off the wire by the original protocol.
+	*/
+	public void releaseImages(InstructionSet set)
+	{
+		for (DrawInstruction inst : set.getInstructions())
+		{
+			release(inst.getImage());
+			inst.setImage(null);
+		}
+	}
+
+	/**
+	Returns the number of images handed out with recycled pixels.
+	*/
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	Returns the number of images handed out that needed new pixels.
+	*/
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	Returns the number of arrays released but not kept, as they did not fit
+	in the budget.
+	*/
+	public synchronized long getDropped()
+	{
+		return dropped;
+	}
+
+	/**
+	Getter.
+	*/
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	Takes an array of exactly `size` pixels out of the pool, or returns null
+	if there is none.
+	*/
+	private synchronized int[] take(int size)
+	{
+		ArrayDeque<int[]> arrays = classes.get(size);
+		if (arrays == null || arrays.isEmpty())
+		{
+			misses++;
+			return null;
+		}
+
+		int[] pixels = arrays.pop();
+		if (arrays.isEmpty()) classes.remove(size);
+		bytes -= pixels.length * 4L;
+		hits++;
+		return pixels;
+	}
+}
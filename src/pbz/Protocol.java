@@ -0,0 +1,163 @@
+package pbz;
+
+/**
+Constants for the versioned wire protocol, up to version `VERSION`, spoken
+between `RenderClient` and the `RenderSiren` server.
+
+The original protocol is simply a serialized `InstructionSet` answered with
+a serialized `Image`. Since a canvas width can never be negative, a newer
+client instead starts with the (negative) `MAGIC` number followed by the
+highest version it speaks. From version 3 on, the client then lists the
+`PixelCodec` encodings it can use for images, most preferred first. The server
+answers with `MAGIC`, the version it agreed to and, from version 3 on, the
+encoding picked from that list. Every image sent in either direction after
+that uses the picked encoding. Then messages are exchanged, each starting
+with its type and, from version 5 on, the id the client gave the request it
+belongs to.
+
+Up to version 4 a connection carries a single request. From version 5 on the
+client may send any number of requests, without waiting for earlier ones to
+be answered, until it closes the connection. The server answers each as soon
+as it is done, so answers to different requests can arrive in any order and
+interleaved with each other.
+
+    REQUEST  client -> server
+             canvas width, canvas height,
+             image count, one `ContentHash` per image,
+             instruction count, per instruction the index of its image in
+             the table followed by x, y, rot, sclx, scly,
+             from version 4 on, the height of the bands the result should
+             be sent in, or 0 for all of it in one `RESULT`.
+
+    NEED     server -> client
+             count, then the table indices (ascending) of the images the
+             server does not have cached. The client replies by writing
+             exactly those images (`Image.write`) in the same order, from
+             version 5 on as an `UPLOAD` and only if there are any.
+
+    UPLOAD   client -> server
+             the images asked for by a `NEED`.
+
+    RESULT   server -> client
+             the rendered `Image`.
+
+    BAND     server -> client
+             instead of `RESULT` if the client asked for bands: the row the
+             band starts at, then the band as an `Image` the width of the
+             canvas and the requested height (less for the last band). Sent
+             from the top of the canvas down, each as soon as it is done.
+
+    ERROR    server -> client
+             instead of the rest of an answer, from version 5 on, if the
+             request could not be rendered: from version 8 on a code, then
+             a description of the problem (`writeUTF`).
+
+From version 6 on, a client can also keep a canvas on the server between
+requests (see `RenderSession`). The server remembers the instruction in every
+slot of the session and redraws only what changes:
+
+    FRAME    client -> server
+             session id, whether to start over (`writeBoolean`),
+             canvas width, canvas height, number of slots,
+             an image table like `REQUEST`'s, the number of changed slots,
+             per changed slot its index, the index of its image in the
+             table, x, y, rot, sclx, scly.
+             Answered with a `NEED` (and an `UPLOAD`) like `REQUEST`, then a
+             `DIRTY`. Starting over, or a different canvas size, clears the
+             canvas and makes all of it dirty. The frames of a session are
+             applied in the order they are sent, even when they are sent
+             without waiting for the `DIRTY` of the one before.
+
+    DIRTY    server -> client
+             the number of rectangles that changed, per rectangle x, y and
+             what is there now, in the negotiated encoding.
+
+    END      client -> server
+             with the session id in place of a request id, forgets the
+             session once the frames sent before it are answered. Not
+             answered.
+
+From version 7 on, every entry of an image table starts with its kind
+(`writeByte`): `BY_HASH` followed by a `ContentHash` as before, or `BY_NAME`
+followed by the name (`writeUTF`) of an image kept on the server (see
+`AssetStore`), which is never asked for. A request that names an image the
+server does not have is answered with an `ERROR`.
+
+From version 8 on, an `ERROR` starts with one of the codes below (`writeInt`)
+before its description, so clients can tell a request that went wrong from
+one the server turned down (see `Admission`). A request turned down is still
+answered with a `NEED` for nothing first, so the client never uploads its
+images. Requests so malformed or big that the rest of the connection cannot
+be trusted any more are answered with an `ERROR` and the connection is closed.
+
+From version 9 on, a client can have several canvases drawn from one image
+table, which saves sending the table, and waiting for a render permit, once
+per canvas. The canvases are drawn in parallel and sent back together:
+
+    BATCH    client -> server
+             an image table like `REQUEST`'s, the number of canvases, per
+             canvas its width, its height, the instruction count and the
+             instructions like `REQUEST`'s.
+             Answered with a `NEED` (and an `UPLOAD`) like `REQUEST`, then
+             `RESULTS`. If any canvas is turned down, the whole batch is.
+
+    RESULTS  server -> client
+             the number of canvases, then each rendered canvas in the
+             negotiated encoding, in the order they were asked for.
+*/
+final class Protocol
+{
+	static final int MAGIC = 0xCAFE8011;
+	static final int VERSION = 9;
+
+	/**
+	Oldest version still understood. Version 2 has no encoding negotiation
+	and always sends images raw.
+	*/
+	static final int MIN_VERSION = 2;
+
+	static final int REQUEST = 1;
+	static final int NEED = 2;
+	static final int RESULT = 3;
+	static final int BAND = 4;
+	static final int UPLOAD = 5;
+	static final int ERROR = 6;
+	static final int FRAME = 7;
+	static final int DIRTY = 8;
+	static final int END = 9;
+	static final int BATCH = 10;
+	static final int RESULTS = 11;
+
+	static final int BY_HASH = 0;
+	static final int BY_NAME = 1;
+
+	/**
+	Drawing the request failed.
+	*/
+	static final int FAILED = 1;
+
+	/**
+	The request makes no sense, like a canvas of negative size.
+	*/
+	static final int INVALID = 2;
+
+	/**
+	The request is over one of the server's limits.
+	*/
+	static final int TOO_LARGE = 3;
+
+	/**
+	The server has too much to do to take the request on. Trying again later
+	may work.
+	*/
+	static final int BUSY = 4;
+
+	/**
+	The request names an asset the server does not have.
+	*/
+	static final int UNKNOWN_ASSET = 5;
+
+	private Protocol()
+	{
+	}
+}
@@ -0,0 +1,914 @@
+package pbz;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+Client side of the newer protocol (see `Protocol`). Images are announced by
+their `ContentHash` and only uploaded if the server asks for them, so an image
+that has been sent once (by anybody) is not sent again for as long as the
+server keeps it cached.
+
+All requests go over one connection that is opened by the first of them and
+kept open until `close` is called or it fails, in which case the next request
+opens a new one. Any number of threads may `submit` requests at the same time
+without waiting for earlier ones to be answered. The server works on them in
+parallel and answers each as soon as it is done.
+
+A `RenderSession` keeps a canvas on the server between frames, so that only
+what changes has to be sent either way.
+
+Given a band height, results come back in bands of rows that the server sends
+as soon as each one is drawn, which a `BandListener` can be told about. That
+gets the top of a big canvas on screen long before the bottom is done.
+
+Instructions can name an asset the server keeps instead of carrying an image
+(see `AssetStore`), which is then never uploaded at all.
+
+Many canvases that draw from the same images, like a page of thumbnails, can
+go as one batch. The images are announced once for all of them, and the
+server draws the canvases in parallel and sends them back together.
+*/
+public class RenderClient implements Closeable
+{
+    private final String host;
+    private final int port;
+    private int[] encodings = { PixelCodec.RAW };
+    private int deflateLevel = 1;
+    private int bandHeight = 0;
+    private int nextSession;
+    private Link link;
+
+    /**
+    Create a client for the `RenderSiren` server at the given address. No
+    connection is made until something is rendered.
+    */
+    public RenderClient(String host, int port)
+    {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+    Have the server render the given `InstructionSet` and return the result.
+    */
+    public Image render(InstructionSet set) throws IOException
+    {
+        return render(set, null);
+    }
+
+    /**
+    Same as the other `render`, but tells the listener about every band of the
+    result as soon as it has arrived. The listener may be null.
+    */
+    public Image render(InstructionSet set, BandListener listener)
+        throws IOException
+    {
+        try
+        {
+            return submit(set, listener).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+    Send the given `InstructionSet` to be rendered and return straight away.
+    The returned future completes with the result, or exceptionally with a
+    `RenderException` if the server could not render it or turned it down,
+    or an `IOException` if the connection failed.
+    */
+    public CompletableFuture<Image> submit(InstructionSet set)
+        throws IOException
+    {
+        return submit(set, null);
+    }
+
+    /**
+    Same as the other `submit`, but tells the listener about every band of
+    the result as soon as it has arrived, on the thread that receives
+    answers. The listener may be null.
+    */
+    public CompletableFuture<Image> submit(InstructionSet set,
+        BandListener listener) throws IOException
+    {
+        return connect().submit(set, listener);
+    }
+
+    /**
+    Have the server render every `InstructionSet` of the batch and return
+    the results in the same order.
+    */
+    public List<Image> renderBatch(List<InstructionSet> sets)
+        throws IOException
+    {
+        try
+        {
+            return submitBatch(sets).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+    Send every `InstructionSet` of the batch to be rendered and return
+    straight away. The returned future completes with the results in the
+    same order, or exceptionally like the one `submit` returns, for the whole
+    batch at once. Bands are not used for batches.
+    */
+    public CompletableFuture<List<Image>> submitBatch(List<InstructionSet> sets)
+        throws IOException
+    {
+        return connect().submitBatch(sets);
+    }
+
+    /**
+    Open a `RenderSession` on the server. Sessions belong to the connection
+    and start over if it has to be opened again.
+    */
+    public synchronized RenderSession openSession()
+    {
+        return new RenderSession(this, nextSession++);
+    }
+
+    /**
+    Send the changes of the frame since the session's last one. The returned
+    future completes once the session's canvas is up to date.
+    */
+    CompletableFuture<Image> submitFrame(RenderSession session,
+        InstructionSet frame) throws IOException
+    {
+        return connect().submitFrame(session, frame);
+    }
+
+    /**
+    Have the server forget the session, if it knows it.
+    */
+    void endSession(RenderSession session) throws IOException
+    {
+        Link current;
+        synchronized (this)
+        {
+            current = link;
+        }
+        if (current != null && session.link == current)
+            current.end(session);
+    }
+
+    /**
+    Returns the open connection, opening one first if there is none.
+    */
+    private synchronized Link connect() throws IOException
+    {
+        if (link == null || link.closed) link = new Link();
+        return link;
+    }
+
+    /**
+    Close the connection, if there is one. Requests that have not been
+    answered yet fail.
+    */
+    @Override
+    public void close()
+    {
+        Link current;
+        synchronized (this)
+        {
+            current = link;
+            link = null;
+        }
+        if (current != null) current.close();
+    }
+
+    /**
+    Getter.
+    */
+    public int[] getEncodings()
+    {
+        return encodings;
+    }
+
+    /**
+    Sets the `PixelCodec` encodings offered to the server, most preferred
+    first. The server falls back to raw pixels if it supports none of them.
+    Takes effect when the next connection is opened.
+    */
+    public void setEncodings(int... encodings)
+    {
+        this.encodings = encodings;
+    }
+
+    /**
+    Getter.
+    */
+    public int getDeflateLevel()
+    {
+        return deflateLevel;
+    }
+
+    /**
+    Sets the level uploads are compressed with if the server agrees to
+    deflate. Takes effect when the next connection is opened.
+    */
+    public void setDeflateLevel(int deflateLevel)
+    {
+        this.deflateLevel = deflateLevel;
+    }
+
+    /**
+    Getter.
+    */
+    public int getBandHeight()
+    {
+        return bandHeight;
+    }
+
+    /**
+    Sets how many rows of the result the server sends at a time. With 0, the
+    default, the server sends the whole result once it is done.
+    */
+    public void setBandHeight(int bandHeight)
+    {
+        if (bandHeight < 0)
+            throw new IllegalArgumentException("Negative band height: " +
+                bandHeight);
+        this.bandHeight = bandHeight;
+    }
+
+    /**
+    One connection to the server. A thread of its own reads all answers and
+    hands uploads to yet another thread, so that it never blocks writing
+    while the server is blocked writing to it.
+    */
+    private class Link
+    {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final PixelCodec codec;
+        private final Map<Integer, Pending> pending =
+            new ConcurrentHashMap<>();
+        private final ExecutorService uploads;
+        private int nextId;
+        private volatile boolean closed;
+
+        /**
+        Connect and agree on a version and encoding with the server.
+        */
+        Link() throws IOException
+        {
+            socket = new Socket(host, port);
+            try
+            {
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream(), RenderSiren.STREAM_BUFFER));
+                out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream(), RenderSiren.STREAM_BUFFER));
+
+                out.writeInt(Protocol.MAGIC);
+                out.writeInt(Protocol.VERSION);
+                out.writeInt(encodings.length);
+                for (int encoding : encodings)
+                {
+                    out.writeInt(encoding);
+                }
+                out.flush();
+
+                if (in.readInt() != Protocol.MAGIC)
+                    throw new IOException("Not a RenderSiren server");
+                int version = in.readInt();
+                if (version != Protocol.VERSION)
+                    throw new IOException("Unsupported protocol version: " +
+                        version);
+                codec = PixelCodec.forEncoding(in.readInt(), deflateLevel);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                socket.close();
+                throw e;
+            }
+
+            uploads = Executors.newSingleThreadExecutor(work -> {
+                Thread thread = new Thread(work, "RenderClient upload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Thread receiver = new Thread(this::receive, "RenderClient");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        /**
+        Send a `REQUEST` for the set.
+        */
+        CompletableFuture<Image> submit(InstructionSet set,
+            BandListener listener) throws IOException
+        {
+            List<DrawInstruction> instructions = set.getInstructions();
+            Map<Object, Integer> table = new LinkedHashMap<>();
+            List<Image> images = new ArrayList<>();
+            int[] imageIndices = index(instructions,
+                new IdentityHashMap<>(), table, images);
+
+            Pending request = new Pending(set, images, listener, null);
+            return send(request, id -> {
+                out.writeInt(Protocol.REQUEST);
+                out.writeInt(id);
+                out.writeInt(set.getCanvasWidth());
+                out.writeInt(set.getCanvasHeight());
+                writeTable(table);
+                out.writeInt(instructions.size());
+                for (int i = 0; i < instructions.size(); i++)
+                {
+                    writeInstruction(instructions.get(i), imageIndices[i]);
+                }
+                out.writeInt(request.bandRows);
+            });
+        }
+
+        /**
+        Send a `BATCH` for the sets, with one image table for all of them.
+        */
+        CompletableFuture<List<Image>> submitBatch(List<InstructionSet> sets)
+            throws IOException
+        {
+            Map<Image, ContentHash> hashes = new IdentityHashMap<>();
+            Map<Object, Integer> table = new LinkedHashMap<>();
+            List<Image> images = new ArrayList<>();
+            List<int[]> imageIndices = new ArrayList<>();
+            for (InstructionSet set : sets)
+            {
+                imageIndices.add(index(set.getInstructions(), hashes, table,
+                    images));
+            }
+
+            Pending request = new Pending(sets, images);
+            send(request, id -> {
+                out.writeInt(Protocol.BATCH);
+                out.writeInt(id);
+                writeTable(table);
+                out.writeInt(sets.size());
+                for (int i = 0; i < sets.size(); i++)
+                {
+                    InstructionSet set = sets.get(i);
+                    List<DrawInstruction> instructions = set.getInstructions();
+                    out.writeInt(set.getCanvasWidth());
+                    out.writeInt(set.getCanvasHeight());
+                    out.writeInt(instructions.size());
+                    for (int j = 0; j < instructions.size(); j++)
+                    {
+                        writeInstruction(instructions.get(j),
+                            imageIndices.get(i)[j]);
+                    }
+                }
+            });
+            return request.results;
+        }
+
+        /**
+        Send a `FRAME` with the instructions that differ from what the server
+        holds for the session, or all of them if it holds nothing.
+        */
+        CompletableFuture<Image> submitFrame(RenderSession session,
+            InstructionSet frame) throws IOException
+        {
+            boolean reset = session.link != this || session.canvas == null ||
+                session.canvas.getWidth() != frame.getCanvasWidth() ||
+                session.canvas.getHeight() != frame.getCanvasHeight();
+            if (reset)
+            {
+                session.slots.clear();
+                session.keys.clear();
+                session.canvas = null;
+            }
+
+            List<DrawInstruction> instructions = frame.getInstructions();
+            Map<Image, ContentHash> hashes = new IdentityHashMap<>();
+            List<Integer> changed = new ArrayList<>();
+            List<DrawInstruction> changes = new ArrayList<>();
+            for (int i = 0; i < instructions.size(); i++)
+            {
+                DrawInstruction inst = instructions.get(i);
+                Object key = key(inst, hashes);
+                if (i < session.slots.size() &&
+                    sameTransform(inst, session.slots.get(i)) &&
+                    key.equals(session.keys.get(i)))
+                    continue;
+
+                // Keep a copy, as callers tend to move their instructions
+                // around between frames
+                DrawInstruction copy = new DrawInstruction(inst.getImage(),
+                    inst.getX(), inst.getY(), inst.getRot(), inst.getSclx(),
+                    inst.getScly());
+                copy.setAsset(inst.getAsset());
+                changed.add(i);
+                changes.add(copy);
+                if (i < session.slots.size())
+                {
+                    session.slots.set(i, copy);
+                    session.keys.set(i, key);
+                }
+                else
+                {
+                    session.slots.add(copy);
+                    session.keys.add(key);
+                }
+            }
+            while (session.slots.size() > instructions.size())
+            {
+                session.slots.remove(session.slots.size() - 1);
+                session.keys.remove(session.keys.size() - 1);
+            }
+            session.link = this;
+
+            Map<Object, Integer> table = new LinkedHashMap<>();
+            List<Image> images = new ArrayList<>();
+            int[] imageIndices = index(changes, hashes, table, images);
+
+            Pending request = new Pending(frame, images, null, session);
+            return send(request, id -> {
+                out.writeInt(Protocol.FRAME);
+                out.writeInt(id);
+                out.writeInt(session.id);
+                out.writeBoolean(reset);
+                out.writeInt(frame.getCanvasWidth());
+                out.writeInt(frame.getCanvasHeight());
+                out.writeInt(instructions.size());
+                writeTable(table);
+                out.writeInt(changes.size());
+                for (int i = 0; i < changes.size(); i++)
+                {
+                    out.writeInt(changed.get(i));
+                    writeInstruction(changes.get(i), imageIndices[i]);
+                }
+            });
+        }
+
+        /**
+        Send an `END` for the session.
+        */
+        void end(RenderSession session) throws IOException
+        {
+            synchronized (out)
+            {
+                if (closed) return;
+                try
+                {
+                    out.writeInt(Protocol.END);
+                    out.writeInt(session.id);
+                    out.flush();
+                }
+                catch (IOException e)
+                {
+                    fail(e);
+                    throw e;
+                }
+            }
+        }
+
+        /**
+        Give the request an id and send it.
+        */
+        private CompletableFuture<Image> send(Pending request,
+            MessageWriter message) throws IOException
+        {
+            synchronized (out)
+            {
+                int id = nextId++;
+                pending.put(id, request);
+                if (closed)
+                {
+                    pending.remove(id);
+                    throw new IOException("Connection closed");
+                }
+
+                try
+                {
+                    message.write(id);
+                    out.flush();
+                }
+                catch (IOException e)
+                {
+                    fail(e);
+                    throw e;
+                }
+            }
+            return request.result;
+        }
+
+        /**
+        Puts the image of every instruction into the table, every distinct
+        one only once and every one hashed only once, and returns the index
+        in the table of each instruction's image. Assets go in by name, with
+        no image to upload.
+        */
+        private int[] index(List<DrawInstruction> instructions,
+            Map<Image, ContentHash> hashes, Map<Object, Integer> table,
+            List<Image> images)
+        {
+            int[] imageIndices = new int[instructions.size()];
+            for (int i = 0; i < imageIndices.length; i++)
+            {
+                DrawInstruction inst = instructions.get(i);
+                Object key = key(inst, hashes);
+                Integer index = table.get(key);
+                if (index == null)
+                {
+                    index = images.size();
+                    table.put(key, index);
+                    images.add(inst.getImage());
+                }
+                imageIndices[i] = index;
+            }
+            return imageIndices;
+        }
+
+        /**
+        Write the hashes and asset names of an image table.
+        */
+        private void writeTable(Map<Object, Integer> table)
+            throws IOException
+        {
+            out.writeInt(table.size());
+            for (Object key : table.keySet())
+            {
+                if (key instanceof String)
+                {
+                    out.writeByte(Protocol.BY_NAME);
+                    out.writeUTF((String)key);
+                }
+                else
+                {
+                    out.writeByte(Protocol.BY_HASH);
+                    ((ContentHash)key).write(out);
+                }
+            }
+        }
+
+        /**
+        Write an instruction as the index of its image and its transform.
+        */
+        private void writeInstruction(DrawInstruction inst, int imageIndex)
+            throws IOException
+        {
+            out.writeInt(imageIndex);
+            out.writeFloat(inst.getX());
+            out.writeFloat(inst.getY());
+            out.writeFloat(inst.getRot());
+            out.writeFloat(inst.getSclx());
+            out.writeFloat(inst.getScly());
+        }
+
+        /**
+        Runs on the receiving thread until the connection is closed, handing
+        every answer to the request it belongs to.
+        */
+        private void receive()
+        {
+            try
+            {
+                while (true)
+                {
+                    int type = in.readInt();
+                    int id = in.readInt();
+                    Pending request = pending.get(id);
+                    if (request == null)
+                        throw new IOException("No such request: " + id);
+
+                    switch (type)
+                    {
+                        case Protocol.NEED:
+                            int[] indices = new int[in.readInt()];
+                            for (int i = 0; i < indices.length; i++)
+                            {
+                                indices[i] = in.readInt();
+                            }
+                            if (indices.length > 0)
+                                uploads.execute(() ->
+                                    upload(id, request, indices));
+                            break;
+
+                        case Protocol.RESULT:
+                            Image result = codec.read(in);
+                            pending.remove(id);
+                            if (request.listener != null)
+                                request.listener.bandReceived(result, 0,
+                                    result.getHeight());
+                            request.result.complete(result);
+                            break;
+
+                        case Protocol.BAND:
+                            receiveBand(id, request);
+                            break;
+
+                        case Protocol.DIRTY:
+                            receiveDirty(id, request);
+                            break;
+
+                        case Protocol.RESULTS:
+                            receiveResults(id, request);
+                            break;
+
+                        case Protocol.ERROR:
+                            int code = in.readInt();
+                            String problem = in.readUTF();
+                            pending.remove(id);
+                            request.fail(new RenderException(code,
+                                (code == Protocol.FAILED ?
+                                    "Server failed to render: " :
+                                    "Server rejected the request: ") +
+                                problem));
+                            break;
+
+                        default:
+                            throw new IOException("Unexpected message " +
+                                type);
+                    }
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                fail(e instanceof IOException ? (IOException)e :
+                    new IOException(e));
+            }
+        }
+
+        /**
+        Puts a `BAND` into the canvas of the request it belongs to, and
+        completes the request with the last one.
+        */
+        private void receiveBand(int id, Pending request) throws IOException
+        {
+            if (request.canvas == null)
+                request.canvas = new Image(request.set.getCanvasWidth(),
+                    request.set.getCanvasHeight());
+
+            Image canvas = request.canvas;
+            int top = in.readInt();
+            Image band = codec.read(in);
+            int rows = Math.min(request.bandRows, canvas.getHeight() - top);
+            if (top != request.nextBand ||
+                band.getWidth() != canvas.getWidth() ||
+                band.getHeight() != rows)
+                throw new IOException("Unexpected band of " +
+                    band.getWidth() + "x" + band.getHeight() + " at " + top);
+
+            System.arraycopy(band.getPixels(), 0, canvas.getPixels(),
+                top * canvas.getWidth(), band.getSize());
+            request.nextBand += rows;
+            if (request.listener != null)
+                request.listener.bandReceived(canvas, top, rows);
+
+            if (request.nextBand == canvas.getHeight())
+            {
+                pending.remove(id);
+                request.result.complete(canvas);
+            }
+        }
+
+        /**
+        Copies the rectangles of a `DIRTY` into the canvas of the session the
+        request belongs to, and completes the request.
+        */
+        private void receiveDirty(int id, Pending request) throws IOException
+        {
+            RenderSession session = request.session;
+            if (session == null)
+                throw new IOException("Request " + id + " is not a frame");
+            if (session.canvas == null)
+                session.canvas = new Image(request.set.getCanvasWidth(),
+                    request.set.getCanvasHeight());
+
+            Image canvas = session.canvas;
+            List<Rectangle> dirty = new ArrayList<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                int x = in.readInt();
+                int y = in.readInt();
+                Image part = codec.read(in);
+                Rectangle area = new Rectangle(x, y, part.getWidth(),
+                    part.getHeight());
+                if (!new Rectangle(0, 0, canvas.getWidth(),
+                    canvas.getHeight()).contains(area))
+                    throw new IOException("Dirty rectangle " + area +
+                        " is not on the canvas");
+
+                for (int row = 0; row < area.height; row++)
+                {
+                    System.arraycopy(part.getPixels(), row * area.width,
+                        canvas.getPixels(), x + (y + row) * canvas.getWidth(),
+                        area.width);
+                }
+                dirty.add(area);
+            }
+
+            session.dirty = dirty;
+            pending.remove(id);
+            request.result.complete(canvas);
+        }
+
+        /**
+        Reads the canvases of a `RESULTS` and completes the batch they belong
+        to.
+        */
+        private void receiveResults(int id, Pending request) throws IOException
+        {
+            int count = in.readInt();
+            if (request.batch == null || count != request.batch.size())
+                throw new IOException("Request " + id + " is not a batch of " +
+                    count);
+
+            List<Image> results = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+            {
+                results.add(codec.read(in));
+            }
+            pending.remove(id);
+            request.results.complete(results);
+        }
+
+        /**
+        Runs on the upload thread. Sends the images the server asked for.
+        */
+        private void upload(int id, Pending request, int[] indices)
+        {
+            synchronized (out)
+            {
+                try
+                {
+                    out.writeInt(Protocol.UPLOAD);
+                    out.writeInt(id);
+                    for (int index : indices)
+                    {
+                        codec.write(request.images.get(index), out);
+                    }
+                    out.flush();
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    fail(e instanceof IOException ? (IOException)e :
+                        new IOException(e));
+                }
+            }
+        }
+
+        /**
+        Close the connection because of the given problem and fail every
+        request that has not been answered.
+        */
+        private void fail(IOException problem)
+        {
+            closed = true;
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                problem.addSuppressed(e);
+            }
+            uploads.shutdown();
+
+            for (Integer id : pending.keySet())
+            {
+                Pending request = pending.remove(id);
+                if (request != null)
+                    request.fail(problem);
+            }
+        }
+
+        /**
+        Close the connection on purpose.
+        */
+        void close()
+        {
+            fail(new IOException("Connection closed"));
+        }
+    }
+
+    /**
+    Writes a message with the given request id.
+    */
+    private interface MessageWriter
+    {
+        void write(int id) throws IOException;
+    }
+
+    /**
+    Returns what the image table knows the instruction's image by: the name
+    of its asset, or the hash of its image, which is worked out only the
+    first time.
+    */
+    private static Object key(DrawInstruction inst,
+        Map<Image, ContentHash> hashes)
+    {
+        if (inst.getAsset() != null) return inst.getAsset();
+
+        Image image = inst.getImage();
+        ContentHash hash = hashes.get(image);
+        if (hash == null)
+        {
+            hash = ContentHash.of(image);
+            hashes.put(image, hash);
+        }
+        return hash;
+    }
+
+    /**
+    Whether both instructions draw at the same place in the same way.
+    */
+    private static boolean sameTransform(DrawInstruction a, DrawInstruction b)
+    {
+        return a.getX() == b.getX() && a.getY() == b.getY() &&
+            a.getRot() == b.getRot() && a.getSclx() == b.getSclx() &&
+            a.getScly() == b.getScly();
+    }
+
+    /**
+    A request waiting for its answer.
+    */
+    private class Pending
+    {
+        final InstructionSet set;
+        final List<Image> images;
+        final BandListener listener;
+        final RenderSession session;
+        final List<InstructionSet> batch;
+        final int bandRows;
+        final CompletableFuture<Image> result = new CompletableFuture<>();
+        final CompletableFuture<List<Image>> results =
+            new CompletableFuture<>();
+        Image canvas;
+        int nextBand;
+
+        Pending(InstructionSet set, List<Image> images, BandListener listener,
+            RenderSession session)
+        {
+            this.set = set;
+            this.images = images;
+            this.listener = listener;
+            this.session = session;
+            batch = null;
+
+            // An empty canvas has no bands to complete it with
+            bandRows = session == null && set.getCanvasHeight() > 0 ?
+                bandHeight : 0;
+        }
+
+        Pending(List<InstructionSet> batch, List<Image> images)
+        {
+            set = null;
+            this.images = images;
+            listener = null;
+            session = null;
+            this.batch = batch;
+            bandRows = 0;
+        }
+
+        /**
+        Fails the request, through whichever future it is answered with.
+        */
+        void fail(Throwable problem)
+        {
+            result.completeExceptionally(problem);
+            results.completeExceptionally(problem);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package pbz;
+
+import java.io.IOException;
+
+/**
+Why a request was not rendered: one of the `ERROR` codes in `Protocol` and a
+description. The server throws it for requests it does not take on (see
+`Admission`), and `RenderClient` for every `ERROR` it gets.
+*/
+public class RenderException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    /**
+    Create an exception with one of the codes in `Protocol`.
+    */
+    public RenderException(int code, String message)
+    {
+        super(message);
+        this.code = code;
+    }
+
+    /**
+    Whether trying the same request again later may work.
+    */
+    public boolean isRetryable()
+    {
+        return code == Protocol.BUSY;
+    }
+
+    /**
+    Getter.
+    */
+    public int getCode()
+    {
+        return code;
+    }
+}
@@ -0,0 +1,92 @@
+package pbz;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+A canvas kept on the server from one frame to the next, for clients that draw
+nearly the same scene over and over, like an animation. Each frame is an
+`InstructionSet` like any other, but only the instructions that differ from
+the last frame's are sent, and only the parts of the canvas that changed come
+back. Bandwidth and drawing then depend on how much moves, not on the size of
+the canvas.
+
+Instructions are compared by position in the set, so appending to or changing
+a scene is cheap while inserting near the front is not. Frames of one session
+are rendered one at a time. Opened with `RenderClient.openSession`.
+*/
+public class RenderSession implements Closeable
+{
+    private final RenderClient client;
+    final int id;
+
+    // What the server is known to hold, kept up to date by `RenderClient`.
+    // The server holds nothing unless `link` is the current connection.
+    Object link;
+    final List<DrawInstruction> slots = new ArrayList<>();
+    // Per slot the asset name or hash of its image
+    final List<Object> keys = new ArrayList<>();
+    Image canvas;
+    List<Rectangle> dirty = new ArrayList<>();
+
+    /**
+    Create a session. Nothing is sent until the first frame.
+    */
+    RenderSession(RenderClient client, int id)
+    {
+        this.client = client;
+        this.id = id;
+    }
+
+    /**
+    Have the server bring the canvas up to date with the given frame and
+    return the rectangles of it that changed. The canvas is changed in place.
+    */
+    public synchronized List<Rectangle> render(InstructionSet frame)
+        throws IOException
+    {
+        try
+        {
+            client.submitFrame(this, frame).get();
+            return dirty;
+        }
+        catch (InterruptedException e)
+        {
+            // The answer may still arrive, so nothing about the canvas is
+            // certain any more
+            link = null;
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            link = null;
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+    Returns the canvas as of the last frame, or null before the first one.
+    */
+    public synchronized Image getCanvas()
+    {
+        return canvas;
+    }
+
+    /**
+    Have the server forget the session.
+    */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        client.endSession(this);
+        link = null;
+    }
+}
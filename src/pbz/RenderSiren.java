@@ -1,10 +1,19 @@
 package pbz;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.awt.Rectangle;
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 
 /**
@@ -12,64 +21,359 @@ Server to accept requests from clients over a raw TCP socket for the purposes
 of rendering a set of images onto a backbuffer and then returning the results.
 "Rendering As A Service"!
 
-Note: Absolutely no attention is given to the performance of this system as it
-is a proof of concept only.
+Each connection is served on a thread from a fixed worker pool, so one slow
+client no longer holds up everybody else. The number of renders that may run
+at the same time is capped separately from the number of connections, since
+reading and writing sockets is cheap compared to blitting.
+
+The following system properties can be used to configure the server:
+
+    rendersiren.port        Port to listen on (8011).
+    rendersiren.workers     Connections served at once (4 per core).
+    rendersiren.maxRenders  Renders in flight at once (1 per core).
+    rendersiren.cacheBytes  Pixel bytes kept in the `ImageCache` (256 MiB).
+    rendersiren.scaleCacheBytes  Pixel bytes of scaled images kept in the
+                            `ScaleCache` (64 MiB).
+    rendersiren.poolBytes   Pixel bytes of finished canvases and images kept
+                            in the `PixelPool` for reuse (64 MiB).
+    rendersiren.encodings   `PixelCodec` encodings clients may pick from, as
+                            a comma separated list ("raw,rle,deflate").
+    rendersiren.deflateLevel  Level used to compress results when a client
+                            picked deflate (1).
+    rendersiren.tileSize    Canvases bigger than one tile of this many pixels
+                            square are drawn tile by tile in parallel (128,
+                            or 0 on a single core). 0 draws everything on the
+                            request's thread.
+    rendersiren.engine      "blocking" for a thread per connection, or "nio"
+                            for a single event loop (see `NioServer`).
+    rendersiren.nioBufferBytes  Bytes the nio engine buffers for all
+                            connections together (256 MiB).
+    rendersiren.streaming   Whether the blocking engine draws instructions as
+                            soon as they and their images have arrived rather
+                            than once the whole request is in (true).
+    rendersiren.culling     Whether to leave out instructions that end up
+                            completely hidden (see `Occlusion`) (true).
+    rendersiren.assets      Directory of images clients can draw by name
+                            (see `AssetStore`) ("assets").
+    rendersiren.metrics     Whether to time every stage of a request and
+                            every blit, and count the pixels blits draw, for
+                            `Metrics` (true). Requests and bytes are counted
+                            regardless.
+    rendersiren.premultiplied  Whether images are premultiplied once as
+                            they come in and canvases composited with the
+                            cheaper "over" operator, which gets translucent
+                            parts of the canvas right rather than darkening
+                            them, but no longer matches the original output
+                            exactly there (false).
+    rendersiren.maxCanvasPixels  Largest canvas a request may ask for, in
+                            pixels (4096x4096).
+    rendersiren.maxRequestBytes  Pixel bytes a single request may upload
+                            (256 MiB).
+    rendersiren.maxInstructions  Instructions, and images in the table, a
+                            single request may hold (65536).
+    rendersiren.maxPending  Requests taken on at once, across connections;
+                            any more are turned away as busy (see
+                            `Admission`) (64 per render permit).
+    rendersiren.maxSessions  `CanvasSession`s a single connection may keep
+                            (16).
+    rendersiren.maxSessionPixels  Pixels the canvases of all sessions may
+                            hold together, across connections (4 of the
+                            largest canvases).
+    rendersiren.maxBatchPixels  Pixels of all the canvases of a batch
+                            together (4 of the largest canvases).
+
+What the server is doing can be watched over JMX, under `pbz:type=RenderSiren`.
 */
 public class RenderSiren
 {
+    static final int CORES = Runtime.getRuntime().availableProcessors();
+    static final int PORT = Integer.getInteger("rendersiren.port", 8011);
+    static final int WORKERS = Integer.getInteger(
+        "rendersiren.workers", CORES * 4);
+    static final int MAX_RENDERS = Integer.getInteger(
+        "rendersiren.maxRenders", CORES);
+    static final int STREAM_BUFFER = 64 * 1024;
+    static final long CACHE_BYTES = Long.getLong(
+        "rendersiren.cacheBytes", 256L << 20);
+    static final Set<Integer> ENCODINGS = parseEncodings(System.getProperty(
+        "rendersiren.encodings", "raw,rle,deflate"));
+    static final int DEFLATE_LEVEL = Integer.getInteger(
+        "rendersiren.deflateLevel", 1);
+    static final int TILE_SIZE = Integer.getInteger(
+        "rendersiren.tileSize", CORES > 1 ? 128 : 0);
+    static final String ENGINE = System.getProperty(
+        "rendersiren.engine", "blocking");
+    static final boolean STREAMING = Boolean.parseBoolean(System.getProperty(
+        "rendersiren.streaming", "true"));
+    static final boolean CULLING = Boolean.parseBoolean(System.getProperty(
+        "rendersiren.culling", "true"));
+    static final boolean PREMULTIPLIED = Boolean.parseBoolean(
+        System.getProperty("rendersiren.premultiplied", "false"));
+    static final long MAX_CANVAS_PIXELS = Long.getLong(
+        "rendersiren.maxCanvasPixels", 4096L * 4096);
+    static final long MAX_REQUEST_BYTES = Long.getLong(
+        "rendersiren.maxRequestBytes", 256L << 20);
+    static final int MAX_INSTRUCTIONS = Integer.getInteger(
+        "rendersiren.maxInstructions", 65536);
+    static final int MAX_PENDING = Integer.getInteger(
+        "rendersiren.maxPending", MAX_RENDERS * 64);
+    static final int MAX_SESSIONS = Integer.getInteger(
+        "rendersiren.maxSessions", 16);
+    static final long MAX_SESSION_PIXELS = Long.getLong(
+        "rendersiren.maxSessionPixels", MAX_CANVAS_PIXELS * 4);
+    static final long MAX_BATCH_PIXELS = Long.getLong(
+        "rendersiren.maxBatchPixels", MAX_CANVAS_PIXELS * 4);
+
+    /**
+    Images uploaded by clients of the second protocol version, shared by all
+    connections.
+    */
+    static final ImageCache cache = new ImageCache(CACHE_BYTES);
+
+    /**
+    Images kept on the server that clients of the seventh protocol version
+    can draw by name.
+    */
+    static final AssetStore assets = AssetStore.open(new File(
+        System.getProperty("rendersiren.assets", "assets")), cache,
+        PREMULTIPLIED);
+
+    /**
+    Threads that draw and answer requests arriving on connections that carry
+    more than one, so the connection can go on reading the next ones.
+    */
+    static final ExecutorService pipeline = Executors.newFixedThreadPool(
+        WORKERS, work -> {
+            Thread thread = new Thread(work, "RenderSiren pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /**
+    Threads that draw the tiles of big canvases and the canvases of a batch.
+    */
+    private static final ForkJoinPool painters = new ForkJoinPool(CORES);
+
+    private static final TileRenderer tiles = new TileRenderer(painters,
+        Math.max(TILE_SIZE, 1));
+
+    /**
+    Permits for rendering. A connection holds one only while it is actually
+    drawing, never while it is waiting on the network.
+    */
+    private static final Semaphore renders = new Semaphore(MAX_RENDERS, true);
+
 	/**
-	Create a TCP socket and bind to it, listening for connections on port 8011.
+	Create a TCP socket and bind to it, listening for connections on port 8011
+	(unless configured otherwise) and hand each one off to the worker pool.
 	*/
     public static void main(String[] args) throws IOException
     {
-        ServerSocket socket = new ServerSocket(8011);
+        Metrics.register();
+        if (ENGINE.equals("nio"))
+        {
+            new NioServer(PORT, MAX_RENDERS).run();
+            return;
+        }
+
+        ServerSocket socket = new ServerSocket(PORT);
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
         while (true)
         {
             Socket connection = socket.accept();
-            handleInstructions(connection);
-            connection.close();
+            workers.execute(() -> serve(connection));
+        }
+    }
+
+    /**
+    Handles a single connection and makes sure it is closed afterwards. Any
+    errors only affect this connection, not the server as a whole.
+    */
+    private static void serve(Socket connection)
+    {
+        try
+        {
+            new Connection(connection).serve();
+        }
+        catch (RenderException e)
+        {
+            // Turned down, which the client has been told if it could be and
+            // `Metrics` counts, rather than something going wrong
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            try
+            {
+                connection.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+    Creates a new `Image` as the backbuffer and draws the `Image` from each
+    `DrawInstruction` onto it in order. The backbuffer may be handed to the
+    `PixelPool` once it is no longer needed.
+    */
+    static Image render(InstructionSet set)
+    {
+        Image result = canvas(set.getCanvasWidth(), set.getCanvasHeight());
+        draw(result, set.getInstructions());
+        return result;
+    }
+
+    /**
+    Returns a transparent canvas to draw on, premultiplied if the server
+    draws that way.
+    */
+    static Image canvas(int width, int height)
+    {
+        Image canvas = PixelPool.shared.borrow(width, height, true);
+        canvas.setPremultiplied(PREMULTIPLIED);
+        return canvas;
+    }
+
+    /**
+    Brings an image that came in from a client into the form the server
+    draws with, which means premultiplying it if the server draws that way.
+    Must be done before the image is shared with anything else.
+    */
+    static void ingest(Image image)
+    {
+        if (PREMULTIPLIED) image.premultiply();
+    }
+
+    /**
+    Draws the instructions onto the canvas in order, tile by tile if the
+    canvas is big enough. Blocks until a render permit is free.
+    */
+    static void draw(Image canvas, List<DrawInstruction> instructions)
+    {
+        draw(canvas, instructions, new Rectangle(0, 0, canvas.getWidth(),
+            canvas.getHeight()));
+    }
+
+    /**
+    Same as the other `draw`, but leaves everything outside the area, which
+    must lie within the canvas, as it is.
+    */
+    static void draw(Image canvas, List<DrawInstruction> instructions,
+        Rectangle area)
+    {
+        renders.acquireUninterruptibly();
+        long start = System.nanoTime();
+        try
+        {
+            paint(canvas, instructions, area);
+        }
+        finally
+        {
+            Metrics.shared.stage(Metrics.RENDER, System.nanoTime() - start);
+            renders.release();
         }
     }
 
     /**
-    Takes a given TCP socket connection and then reads the desired instructions
-    sent from the client. Creates an `Image` with the dimensions specified from
-    the client and then renders each `Instruction` onto it in turn. Sends the
-    results back to the client when finished.
+    Draws each list of instructions onto the canvas at the same index, the
+    canvases in parallel unless the tile size is 0. A batch of canvases
+    waits for a single render permit rather than one per canvas, and keeps
+    every core busy even when its canvases are too small to be split into
+    tiles.
     */
-    private static void handleInstructions(Socket socket) throws IOException
+    static void drawAll(List<Image> canvases,
+        List<List<DrawInstruction>> instructions)
     {
-    	// Having a smaller send/receive buffer size increased performance
-        socket.setReceiveBufferSize(512);
-        socket.setSendBufferSize(512);
+        renders.acquireUninterruptibly();
+        long start = System.nanoTime();
+        try
+        {
+            IntConsumer drawOne = i -> {
+                Image canvas = canvases.get(i);
+                paint(canvas, instructions.get(i), new Rectangle(0, 0,
+                    canvas.getWidth(), canvas.getHeight()));
+            };
 
-        // Create the data streams
-        DataInputStream in = new DataInputStream(socket.getInputStream());
-        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            if (TILE_SIZE > 0 && canvases.size() > 1)
+                painters.submit(() -> IntStream.range(0, canvases.size())
+                    .parallel().forEach(drawOne)).join();
+            else
+                IntStream.range(0, canvases.size()).forEach(drawOne);
+        }
+        finally
+        {
+            Metrics.shared.stage(Metrics.RENDER, System.nanoTime() - start);
+            renders.release();
+        }
+    }
 
-        // Read the instruction set from the socket
-        InstructionSet set = InstructionSet.read(in);
+    /**
+    Does the drawing for `draw`, which holds the render permit.
+    */
+    private static void paint(Image canvas, List<DrawInstruction> instructions,
+        Rectangle area)
+    {
+        if (CULLING) instructions = Occlusion.visible(instructions, area);
 
-        System.out.println("Successfully read the instruction set!");
+        if (TILE_SIZE > 0 && (area.width > TILE_SIZE ||
+            area.height > TILE_SIZE) && spansTiles(instructions, area))
+        {
+            tiles.render(instructions, canvas, area);
+            return;
+        }
 
-        // Create a new `Image` as the backbuffer
-        Image result = new Image(set.getCanvasWidth(), set.getCanvasHeight());
+        for (DrawInstruction inst : instructions)
+        {
+            canvas.blitBitmap(inst.getImage(), inst.getX(), inst.getY(),
+                inst.getRot(), inst.getSclx(), inst.getScly(), area);
+        }
+    }
 
-        // Draw the `Image` from each `DrawInstruction` onto the backbuffer
-        for (DrawInstruction inst : set.getInstructions())
+    /**
+    Whether what the instructions draw within the area is wider or taller
+    than a tile. Anything smaller, such as a single sprite drawn as soon as
+    it arrives, is drawn faster straight away than split into tiles.
+    */
+    private static boolean spansTiles(List<DrawInstruction> instructions,
+        Rectangle area)
+    {
+        Rectangle drawn = null;
+        for (DrawInstruction inst : instructions)
         {
-            result.blitBitmap(inst.getImage(), inst.getX(), inst.getY(),
-            	inst.getRot(), inst.getSclx(), inst.getScly());
+            Rectangle bounds = inst.getBounds().intersection(area);
+            if (bounds.isEmpty()) continue;
+
+            drawn = drawn == null ? bounds : drawn.union(bounds);
+            if (drawn.width > TILE_SIZE || drawn.height > TILE_SIZE)
+                return true;
         }
+        return false;
+    }
 
-        // Send the client the results
-        System.out.println("Starting to write the results to the client");
-        result.write(out);
-        System.out.println("Successfully sent!");
+    /**
+    Returns the number of draws waiting for a render permit.
+    */
+    static int waitingRenders()
+    {
+        return renders.getQueueLength();
+    }
 
-        // Close the streams
-        in.close();
-        out.flush();
-        out.close();
+    /**
+    Turns a comma separated list of encoding names into their ids.
+    */
+    private static Set<Integer> parseEncodings(String names)
+    {
+        Set<Integer> encodings = new HashSet<>();
+        for (String name : names.split(","))
+        {
+            encodings.add(PixelCodec.parseEncoding(name));
+        }
+        return encodings;
     }
-}
\ No newline at end of file
+}
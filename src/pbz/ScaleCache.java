@@ -0,0 +1,379 @@
+package pbz;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+Keeps scaled copies of bitmaps around so that sprites drawn at the same scale
+over and over are only resampled once. There are two kinds of copy: the
+exact point sampled result of scaling to a given size, which `blitScl` then
+just copies, and the levels of a pyramid of copies each half the size of the
+one before, which rotating blits that shrink a lot sample instead of the
+much bigger original.
+
+Copies are found by the identity of the original and made again if it has
+been drawn on since (noticed by `Bitmap.getOpacity` having changed), and the
+least recently used ones are evicted as soon as the pixels held exceed the
+byte budget. Originals are only weakly referenced, and their copies dropped
+once they have been garbage collected. Looking up a copy that is there
+allocates nothing. Thread safe.
+*/
+class ScaleCache
+{
+	/**
+	The cache the blits use, holding `rendersiren.scaleCacheBytes` bytes of
+	pixels (64 MiB).
+	*/
+	static final ScaleCache shared = new ScaleCache(Long.getLong(
+		"rendersiren.scaleCacheBytes", 64L << 20));
+
+	private final long budget;
+	private long bytes;
+	private final LinkedHashMap<Key, Entry> entries =
+		new LinkedHashMap<>(16, 0.75f, true);
+	private final ReferenceQueue<Bitmap> collected = new ReferenceQueue<>();
+
+	/**
+	What `entries` is searched with, only ever used while holding the lock.
+	*/
+	private final Lookup lookup = new Lookup();
+
+	/**
+	Create an empty cache that holds at most `budget` bytes of pixels.
+	*/
+	public ScaleCache(long budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	Returns the bitmap scaled to `width` by `height` pixels by picking the
+	source pixel every destination pixel falls on, exactly like `blitScl`
+	does. Null if it would not fit in the budget, in which case the caller
+	is better off sampling the original as it goes.
+	*/
+	public Bitmap scaled(Bitmap image, int width, int height)
+	{
+		if (width * 4L * height > budget) return null;
+
+		Entry entry = entry(image, width, height, true);
+		synchronized (entry)
+		{
+			Opacity version = image.getOpacity();
+			if (entry.bitmap == null || entry.version != version)
+				store(entry, sample(image, width, height), version);
+			return entry.bitmap;
+		}
+	}
+
+	/**
+	Same as `scaled`, but only returns a copy that is there already and up
+	to date, or null, rather than making one.
+	*/
+	public Bitmap cached(Bitmap image, int width, int height)
+	{
+		Entry entry = entry(image, width, height, false);
+		if (entry == null) return null;
+		synchronized (entry)
+		{
+			return entry.version == image.getOpacity() ? entry.bitmap : null;
+		}
+	}
+
+	/**
+	Returns level `level` of the pyramid of the bitmap: level 0 is the bitmap
+	itself and every level after that averages 2x2 pixels of the one before.
+	Levels never get smaller than one pixel.
+	*/
+	public Bitmap level(Bitmap image, int level)
+	{
+		if (level == 0) return image;
+
+		// Marked with negative sizes to keep them apart from exact ones
+		Entry entry = entry(image, -level, -level, true);
+		synchronized (entry)
+		{
+			Opacity version = image.getOpacity();
+			if (entry.bitmap == null || entry.version != version)
+				store(entry, halve(level(image, level - 1)), version);
+			return entry.bitmap;
+		}
+	}
+
+	/**
+	Getter.
+	*/
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	Returns the entry for the copy of the given size of the bitmap, adding an
+	empty one if there is none and `add` is set, or else returning null.
+	*/
+	private synchronized Entry entry(Bitmap image, int width, int height,
+		boolean add)
+	{
+		Reference<? extends Bitmap> gone;
+		while ((gone = collected.poll()) != null)
+		{
+			Entry dropped = entries.remove(((Original)gone).key);
+			if (dropped != null && dropped.bitmap != null)
+				bytes -= sizeOf(dropped.bitmap);
+		}
+
+		lookup.set(image, width, height);
+		Entry entry = entries.get(lookup);
+		lookup.set(null, 0, 0);
+		if (entry == null && add)
+		{
+			Key key = new Stored(image, width, height, collected);
+			entry = new Entry(key);
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	Fills in an entry, evicting the least recently used ones to stay within
+	the budget. The entry itself stays usable by whoever holds it even if it
+	gets evicted.
+	*/
+	private synchronized void store(Entry entry, Bitmap bitmap,
+		Opacity version)
+	{
+		if (entry.bitmap != null && entries.get(entry.key) == entry)
+			bytes -= sizeOf(entry.bitmap);
+		entry.bitmap = bitmap;
+		entry.version = version;
+		if (entries.get(entry.key) != entry) return;
+		bytes += sizeOf(bitmap);
+
+		Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+		while (bytes > budget && eldest.hasNext())
+		{
+			Entry evicted = eldest.next().getValue();
+			if (evicted.bitmap != null) bytes -= sizeOf(evicted.bitmap);
+			eldest.remove();
+		}
+	}
+
+	/**
+	Point samples the bitmap at `width` by `height` pixels, stepping through
+	the source the same way `blitScl` always has so the result is identical.
+	*/
+	private static Bitmap sample(Bitmap image, int width, int height)
+	{
+		Bitmap result = new Bitmap(width, height);
+		result.setPremultiplied(image.isPremultiplied());
+		int[] pixels = result.getPixels();
+
+		// Source column of every destination column
+		double stepx = (double)image.getWidth() / (double)width;
+		double stepy = (double)image.getHeight() / (double)height;
+		int[] columns = new int[width];
+		double inx = 0;
+		for (int xout = 0; xout < width; xout++)
+		{
+			columns[xout] = (int)inx;
+			inx += stepx;
+		}
+
+		double iny = 0;
+		for (int yout = 0; yout < height; yout++)
+		{
+			for (int xout = 0; xout < width; xout++)
+			{
+				pixels[xout + yout * width] = image.getPixel(columns[xout],
+					(int)iny);
+			}
+			iny += stepy;
+		}
+		return result;
+	}
+
+	/**
+	Returns a bitmap half the size of the given one, each pixel the average
+	of 2x2 pixels weighted by their alpha, so that transparent pixels do not
+	darken the colors next to them. An odd last row or column is left out.
+	*/
+	private static Bitmap halve(Bitmap image)
+	{
+		int width = Math.max(1, image.getWidth() / 2);
+		int height = Math.max(1, image.getHeight() / 2);
+		Bitmap result = new Bitmap(width, height);
+		boolean premultiplied = image.isPremultiplied();
+		result.setPremultiplied(premultiplied);
+		int[] src = image.getPixels();
+		int[] dest = result.getPixels();
+		int srcWidth = image.getWidth();
+		int lastx = image.getWidth() - 1;
+		int lasty = image.getHeight() - 1;
+
+		for (int y = 0; y < height; y++)
+		{
+			int row0 = Math.min(2 * y, lasty) * srcWidth;
+			int row1 = Math.min(2 * y + 1, lasty) * srcWidth;
+			for (int x = 0; x < width; x++)
+			{
+				int x0 = Math.min(2 * x, lastx);
+				int x1 = Math.min(2 * x + 1, lastx);
+				dest[x + y * width] = premultiplied ?
+					averagePremultiplied(src[row0 + x0], src[row0 + x1],
+						src[row1 + x0], src[row1 + x1]) :
+					average(src[row0 + x0], src[row0 + x1],
+						src[row1 + x0], src[row1 + x1]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	Averages four colors, weighting each by its alpha.
+	*/
+	private static int average(int a, int b, int c, int d)
+	{
+		int aa = a >>> 24, ba = b >>> 24, ca = c >>> 24, da = d >>> 24;
+		int alpha = aa + ba + ca + da;
+		if (alpha == 0) return 0;
+
+		int half = alpha / 2;
+		int red = ((a >> 16 & 0xFF) * aa + (b >> 16 & 0xFF) * ba +
+			(c >> 16 & 0xFF) * ca + (d >> 16 & 0xFF) * da + half) / alpha;
+		int green = ((a >> 8 & 0xFF) * aa + (b >> 8 & 0xFF) * ba +
+			(c >> 8 & 0xFF) * ca + (d >> 8 & 0xFF) * da + half) / alpha;
+		int blue = ((a & 0xFF) * aa + (b & 0xFF) * ba + (c & 0xFF) * ca +
+			(d & 0xFF) * da + half) / alpha;
+		return (alpha + 2) / 4 << 24 | red << 16 | green << 8 | blue;
+	}
+
+	/**
+	Averages four premultiplied colors, which are weighted by their alpha
+	already.
+	*/
+	private static int averagePremultiplied(int a, int b, int c, int d)
+	{
+		int rb = (a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF) +
+			(d & 0xFF00FF) + 0x020002;
+		int ag = (a >>> 8 & 0xFF00FF) + (b >>> 8 & 0xFF00FF) +
+			(c >>> 8 & 0xFF00FF) + (d >>> 8 & 0xFF00FF) + 0x020002;
+		return (ag << 6 & 0xFF00FF00) | (rb >>> 2 & 0xFF00FF);
+	}
+
+	private static long sizeOf(Bitmap bitmap)
+	{
+		return bitmap.getSize() * 4L;
+	}
+
+	/**
+	An original by identity and the size of a copy of it.
+	*/
+	private abstract static class Key
+	{
+		int hash;
+		int width;
+		int height;
+
+		/**
+		Returns the original, or null once it is gone.
+		*/
+		abstract Bitmap original();
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (o == this) return true;
+			if (!(o instanceof Key)) return false;
+			Key other = (Key)o;
+			Bitmap original = original();
+			return original != null && original == other.original() &&
+				width == other.width && height == other.height;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash * 31 * 31 + width * 31 + height;
+		}
+	}
+
+	/**
+	The key of an entry, which only weakly references its original.
+	*/
+	private static class Stored extends Key
+	{
+		final Original image;
+
+		Stored(Bitmap image, int width, int height,
+			ReferenceQueue<Bitmap> collected)
+		{
+			this.image = new Original(image, this, collected);
+			this.hash = System.identityHashCode(image);
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		Bitmap original()
+		{
+			return image.get();
+		}
+	}
+
+	/**
+	A key that is filled in for every lookup instead of making a new one.
+	*/
+	private static class Lookup extends Key
+	{
+		private Bitmap image;
+
+		void set(Bitmap image, int width, int height)
+		{
+			this.image = image;
+			this.hash = System.identityHashCode(image);
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		Bitmap original()
+		{
+			return image;
+		}
+	}
+
+	/**
+	The reference a key holds its original by, which leads back to the key
+	once the original is gone.
+	*/
+	private static class Original extends WeakReference<Bitmap>
+	{
+		final Key key;
+
+		Original(Bitmap image, Key key, ReferenceQueue<Bitmap> collected)
+		{
+			super(image, collected);
+			this.key = key;
+		}
+	}
+
+	/**
+	A copy, and the version of the original it was made from.
+	*/
+	private static class Entry
+	{
+		final Key key;
+		Bitmap bitmap;
+		Opacity version;
+
+		Entry(Key key)
+		{
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package pbz;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+Renders an `InstructionSet` by splitting the canvas into square tiles and
+drawing the tiles in parallel on a fork/join pool. Each instruction is only
+drawn onto the tiles its bounds overlap, and within a tile instructions are
+drawn in their original order, so the result is exactly the same as drawing
+everything onto the whole canvas one instruction after another.
+*/
+class TileRenderer
+{
+	private final ForkJoinPool pool;
+	private final int tileSize;
+
+	/**
+	Create a renderer that draws tiles of `tileSize` by `tileSize` pixels on
+	the given pool.
+	*/
+	public TileRenderer(ForkJoinPool pool, int tileSize)
+	{
+		this.pool = pool;
+		this.tileSize = tileSize;
+	}
+
+	/**
+	Draw every instruction of the set onto the canvas.
+	*/
+	public void render(InstructionSet set, Image canvas)
+	{
+		render(set.getInstructions(), canvas);
+	}
+
+	/**
+	Draw the given instructions onto the canvas in order.
+	*/
+	public void render(List<DrawInstruction> instructions, Image canvas)
+	{
+		render(instructions, canvas, new Rectangle(0, 0, canvas.getWidth(),
+			canvas.getHeight()));
+	}
+
+	/**
+	Draw the given instructions in order, but only within the area, which must
+	lie within the canvas. Tiles start at the top left corner of the area.
+	*/
+	public void render(List<DrawInstruction> instructions, Image canvas,
+		Rectangle area)
+	{
+		int columns = (area.width + tileSize - 1) / tileSize;
+		int rows = (area.height + tileSize - 1) / tileSize;
+
+		// Sort the instructions into bins, keeping them in order. Only the
+		// tiles something is drawn on get one.
+		List<List<DrawInstruction>> bins = new ArrayList<>(
+			Collections.nCopies(columns * rows, null));
+		List<Integer> used = new ArrayList<>();
+		for (DrawInstruction inst : instructions)
+		{
+			Rectangle drawn = inst.getBounds().intersection(area);
+			if (drawn.isEmpty()) continue;
+
+			int left = (drawn.x - area.x) / tileSize;
+			int top = (drawn.y - area.y) / tileSize;
+			int right = (drawn.x + drawn.width - 1 - area.x) / tileSize;
+			int bottom = (drawn.y + drawn.height - 1 - area.y) / tileSize;
+			for (int row = top; row <= bottom; row++)
+			{
+				for (int column = left; column <= right; column++)
+				{
+					int tile = column + row * columns;
+					if (bins.get(tile) == null)
+					{
+						bins.set(tile, new ArrayList<>());
+						used.add(tile);
+					}
+					bins.get(tile).add(inst);
+				}
+			}
+		}
+
+		// A small sprite drawn on its own often lands on a single tile,
+		// which is not worth handing to the pool
+		if (used.size() == 1)
+			drawTile(canvas, area, columns, used.get(0), bins.get(used.get(0)));
+		else if (used.size() > 1)
+			pool.invoke(new Tiles(canvas, area, bins, columns, used, 0,
+				used.size()));
+	}
+
+	/**
+	Draws the instructions of a bin onto its tile.
+	*/
+	private void drawTile(Image canvas, Rectangle area, int columns, int tile,
+		List<DrawInstruction> bin)
+	{
+		Rectangle clip = new Rectangle(
+			area.x + (tile % columns) * tileSize,
+			area.y + (tile / columns) * tileSize,
+			tileSize, tileSize).intersection(area);
+
+		for (DrawInstruction inst : bin)
+		{
+			canvas.blitBitmap(inst.getImage(), inst.getX(), inst.getY(),
+				inst.getRot(), inst.getSclx(), inst.getScly(), clip);
+		}
+	}
+
+	/**
+	Draws a range of the tiles that have something on them, splitting it in
+	half until only one is left.
+	*/
+	private class Tiles extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Image canvas;
+		private final Rectangle area;
+		private final List<List<DrawInstruction>> bins;
+		private final int columns;
+		private final List<Integer> used;
+		private final int from;
+		private final int to;
+
+		Tiles(Image canvas, Rectangle area, List<List<DrawInstruction>> bins,
+			int columns, List<Integer> used, int from, int to)
+		{
+			this.canvas = canvas;
+			this.area = area;
+			this.bins = bins;
+			this.columns = columns;
+			this.used = used;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from > 1)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(
+					new Tiles(canvas, area, bins, columns, used, from, middle),
+					new Tiles(canvas, area, bins, columns, used, middle, to));
+				return;
+			}
+
+			int tile = used.get(from);
+			drawTile(canvas, area, columns, tile, bins.get(tile));
+		}
+	}
+}